@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.util.List;
 
 import com.cloudera.science.ml.client.params.CentersParameters;
+import com.cloudera.science.ml.client.params.IndexParameters;
 import org.apache.crunch.PCollection;
 import org.apache.crunch.Pipeline;
 import org.apache.hadoop.conf.Configuration;
@@ -47,6 +48,10 @@ public class KMeansAssignmentCommand implements Command {
       description = "The path to write the output to (id, clustering_id, center_id, distance)")
   private String assignmentsPath;
   
+  @Parameter(names = "--approx",
+      description = "Enable approximate center assignments to speed up processing at the cost of accuracy")
+  private boolean approx = false;
+  
   @ParametersDelegate
   private VectorInputParameters inputParams = new VectorInputParameters();
   
@@ -59,14 +64,17 @@ public class KMeansAssignmentCommand implements Command {
   @ParametersDelegate
   private CentersParameters centersParams = new CentersParameters();
 
+  @ParametersDelegate
+  private IndexParameters indexParams = new IndexParameters();
+
   @Override
   public int execute(Configuration conf) throws IOException {
     Pipeline p = pipelineParams.create(KMeansAssignmentCommand.class, conf);
     PCollection<NamedVector> input = inputParams.getVectors(p);
-    KMeansParallel kmp = new KMeansParallel();
+    KMeansParallel kmp = indexParams.createKMeansParallel(null);
 
     Records assigned = kmp.computeClusterAssignments(input,
-        centersParams.getCenters(), centersParams.getCenterIds());
+        centersParams.getCenters(), centersParams.getCenterIds(), approx);
 
     outputParams.writeRecords(assigned.get(), assigned.getSpec(), assignmentsPath);
     p.done();
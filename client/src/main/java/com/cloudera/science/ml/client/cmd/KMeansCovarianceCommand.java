@@ -19,6 +19,7 @@ import com.beust.jcommander.Parameters;
 import com.beust.jcommander.ParametersDelegate;
 import com.cloudera.science.ml.avro.MLClusterCovariance;
 import com.cloudera.science.ml.client.params.CentersParameters;
+import com.cloudera.science.ml.client.params.IndexParameters;
 import com.cloudera.science.ml.client.params.PipelineParameters;
 import com.cloudera.science.ml.client.params.VectorInputParameters;
 import com.cloudera.science.ml.client.util.AvroIO;
@@ -54,12 +55,15 @@ public class KMeansCovarianceCommand implements Command {
   @ParametersDelegate
   private CentersParameters centersParams = new CentersParameters();
 
+  @ParametersDelegate
+  private IndexParameters indexParams = new IndexParameters();
+
   @Override
   public int execute(Configuration conf) throws IOException {
     Pipeline p = pipelineParams.create(KMeansCovarianceCommand.class, conf);
     PCollection<Vector> vecs = inputParams.getVectors(p);
 
-    KMeansParallel kmp = new KMeansParallel();
+    KMeansParallel kmp = indexParams.createKMeansParallel(null);
 
     PObject<List<MLClusterCovariance>> cov = kmp.computeClusterCovarianceMatrix(
         vecs,
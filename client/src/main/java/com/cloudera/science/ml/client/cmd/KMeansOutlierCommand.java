@@ -22,6 +22,7 @@ import com.beust.jcommander.converters.IntegerConverter;
 import com.beust.jcommander.internal.Maps;
 import com.cloudera.science.ml.avro.MLClusterCovariance;
 import com.cloudera.science.ml.client.params.CentersParameters;
+import com.cloudera.science.ml.client.params.IndexParameters;
 import com.cloudera.science.ml.client.params.PipelineParameters;
 import com.cloudera.science.ml.client.params.RecordOutputParameters;
 import com.cloudera.science.ml.client.params.VectorInputParameters;
@@ -72,6 +73,9 @@ public class KMeansOutlierCommand implements Command {
   @ParametersDelegate
   private CentersParameters centersParams = new CentersParameters();
 
+  @ParametersDelegate
+  private IndexParameters indexParams = new IndexParameters();
+
   @ParametersDelegate
   private RecordOutputParameters outputParams = new RecordOutputParameters();
 
@@ -90,7 +94,7 @@ public class KMeansOutlierCommand implements Command {
 
     Pipeline p = pipelineParams.create(KMeansOutlierCommand.class, conf);
     PCollection<NamedVector> vecs = inputParams.getVectors(p);
-    KMeansParallel kmp = new KMeansParallel();
+    KMeansParallel kmp = indexParams.createKMeansParallel(null);
 
     List<Centers> centers = centersParams.getCenters();
     List<Integer> centerIds = centersParams.getCenterIds();
@@ -27,6 +27,7 @@ import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import com.beust.jcommander.ParametersDelegate;
 import com.cloudera.science.ml.avro.MLWeightedCenters;
+import com.cloudera.science.ml.client.params.IndexParameters;
 import com.cloudera.science.ml.client.params.PipelineParameters;
 import com.cloudera.science.ml.client.params.RandomParameters;
 import com.cloudera.science.ml.client.params.VectorInputParameters;
@@ -35,6 +36,7 @@ import com.cloudera.science.ml.core.vectors.VectorConvert;
 import com.cloudera.science.ml.core.vectors.Weighted;
 import com.cloudera.science.ml.kmeans.parallel.KMeansParallel;
 import com.cloudera.science.ml.parallel.crossfold.Crossfold;
+import com.cloudera.science.ml.parallel.dedupe.Dedupe;
 import com.google.common.collect.Lists;
 
 @Parameters(commandDescription = "Creates a sketch of a large dataset via the k-means|| (scalable k-means++) algorithm")
@@ -56,18 +58,41 @@ public class KMeansSketchCommand implements Command {
       description = "The number of sample points to select on each iteration")
   private int samplesPerIteration;
 
+  @Parameter(names = "--fuse-weighting",
+      description = "Weight the sketch points during the last iteration instead of in an extra pass over the data " +
+          "(the weights of the points sampled on the last iteration are approximate)")
+  private boolean fuseWeighting = false;
+
+  @Parameter(names = "--bernoulli-sampling",
+      description = "Keep each point independently with probability proportional to its cost on each iteration " +
+          "instead of taking a fixed-size weighted sample (avoids a reduce on each iteration)")
+  private boolean bernoulliSampling = false;
+
+  @Parameter(names = "--max-candidates",
+      description = "If greater than zero, collapse the sketch of any fold with more than this many points down " +
+          "to this many after each iteration (bounds the memory used by each task)")
+  private int maxCandidates = 0;
+
+  @Parameter(names = "--cache-folds",
+      description = "Assign the input points to folds once and reuse that output on every iteration instead " +
+          "of re-reading and re-converting the raw input each time (with --single-precision, the cached " +
+          "points are rounded to floats)")
+  private boolean cacheFolds = false;
+
+  @Parameter(names = "--dedupe",
+      description = "Collapse identical input vectors into a single weighted point before sketching, so that " +
+          "each distinct point is only scored once on each pass")
+  private boolean dedupe = false;
+
+  @Parameter(names = "--checkpoint-path",
+      description = "A local or HDFS path to save the sketch to after each iteration; if a checkpoint from an " +
+          "earlier run with the same arguments exists there, the sketch resumes from it")
+  private String checkpointPath;
+
   @Parameter(names = "--output-file", required=true,
       description = "A local file to write the sketch output to (as Avro MLWeightedCenters records)")
   private String outputFile;
   
-  @Parameter(names = "--index-bits",
-      description = "The number of bits to use in the centers index data structure")
-  private int indexBits = 128;
-  
-  @Parameter(names = "--index-samples",
-      description = "The number of matching points from the centers index to compare to each vector")
-  private int indexSamples = 32;
-  
   @ParametersDelegate
   private PipelineParameters pipelineParams = new PipelineParameters();
   
@@ -77,6 +102,9 @@ public class KMeansSketchCommand implements Command {
   @ParametersDelegate
   private RandomParameters randomParams = new RandomParameters();
   
+  @ParametersDelegate
+  private IndexParameters indexParams = new IndexParameters();
+  
   @Override
   public int execute(Configuration conf) throws IOException {
     Pipeline p = pipelineParams.create(KMeansSketchCommand.class, conf);
@@ -90,12 +118,23 @@ public class KMeansSketchCommand implements Command {
       initial = Lists.newArrayList();
       initial.add(input.materialize().iterator().next());
     }
-    KMeansParallel kmp = new KMeansParallel(randomParams.getRandom(), indexBits,
-        indexSamples);
+    KMeansParallel kmp = indexParams.builder(randomParams.getRandom())
+        .fusedWeighting(fuseWeighting)
+        .bernoulliSampling(bernoulliSampling)
+        .maxCandidates(maxCandidates)
+        .cacheFolds(cacheFolds)
+        .checkpointPath(checkpointPath)
+        .build();
     Crossfold cf = new Crossfold(crossFolds);
     
-    List<List<Weighted<Vector>>> wv = kmp.initialization(input,
-        numIterations, samplesPerIteration, initial, cf);
+    List<List<Weighted<Vector>>> wv;
+    if (dedupe) {
+      wv = kmp.weightedInitialization(Dedupe.apply(input),
+          numIterations, samplesPerIteration, initial, cf);
+    } else {
+      wv = kmp.initialization(input,
+          numIterations, samplesPerIteration, initial, cf);
+    }
     AvroIO.write(toWeightedCenters(wv), new File(outputFile));
     p.done();
     
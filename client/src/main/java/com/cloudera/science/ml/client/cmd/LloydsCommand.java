@@ -22,6 +22,7 @@ import org.apache.crunch.PCollection;
 import org.apache.crunch.Pipeline;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.Vector;
 
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
@@ -29,12 +30,17 @@ import com.beust.jcommander.ParametersDelegate;
 import com.beust.jcommander.converters.CommaParameterSplitter;
 import com.beust.jcommander.converters.IntegerConverter;
 import com.cloudera.science.ml.avro.MLCenters;
+import com.cloudera.science.ml.avro.MLClusterCovariance;
+import com.cloudera.science.ml.client.params.IndexParameters;
 import com.cloudera.science.ml.client.params.PipelineParameters;
 import com.cloudera.science.ml.client.params.VectorInputParameters;
 import com.cloudera.science.ml.client.util.AvroIO;
 import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.VectorConvert;
+import com.cloudera.science.ml.core.vectors.Weighted;
 import com.cloudera.science.ml.kmeans.parallel.KMeansParallel;
+import com.cloudera.science.ml.kmeans.parallel.LloydsResult;
+import com.cloudera.science.ml.parallel.dedupe.Dedupe;
 import com.google.common.collect.Lists;
 
 @Parameters(commandDescription =
@@ -56,9 +62,17 @@ public class LloydsCommand implements Command {
   private String outputCentersFile;
   
   @Parameter(names = "--num-iterations",
-      description = "The number of iterations of Lloyd's algorithm to run")
+      description = "The (maximum) number of iterations of Lloyd's algorithm to run")
   private int numIterations = 1;
   
+  @Parameter(names = "--cost-tolerance",
+      description = "Stop iterating once the relative decrease in the cost of every clustering is below this value")
+  private double costTolerance = 0.0;
+  
+  @Parameter(names = "--shift-tolerance",
+      description = "Stop iterating once no center moves further than this distance in an iteration")
+  private double shiftTolerance = 0.0;
+  
   @Parameter(names = "--approx",
       description = "Use approximate point assignment (tends to speed up runs at the cost of accuracy)")
   private boolean approx = false;
@@ -67,12 +81,34 @@ public class LloydsCommand implements Command {
       description = "If true, calculates and prints the cost of the new output clusters")
   private boolean computeCosts = false;
   
+  @Parameter(names = "--iteration-costs",
+      description = "If true, prints the cost of the clusters at the start of each iteration, which is " +
+          "recorded during the iterations without an extra pass over the data")
+  private boolean iterationCosts = false;
+  
+  @Parameter(names = "--covariance-file",
+      description = "If given, compute the covariance of each cluster during the last iteration and write it " +
+          "to this local file in the same Avro format as kcovar, instead of running kcovar afterwards")
+  private String covarianceFile;
+  
+  @Parameter(names = "--checkpoint-path",
+      description = "A local or HDFS path to save the centers to after each iteration; if a checkpoint from an " +
+          "earlier run with the same arguments exists there, the run resumes from it")
+  private String checkpointPath;
+  
+  @Parameter(names = "--dedupe",
+      description = "Collapse identical input vectors into a single weighted point before the first iteration")
+  private boolean dedupe = false;
+  
   @ParametersDelegate
   private VectorInputParameters inputParams = new VectorInputParameters();
   
   @ParametersDelegate
   private PipelineParameters pipelineParams = new PipelineParameters();
   
+  @ParametersDelegate
+  private IndexParameters indexParams = new IndexParameters();
+  
   @Override
   public int execute(Configuration conf) throws IOException {
     Pipeline p = pipelineParams.create(KMeansAssignmentCommand.class, conf);
@@ -86,19 +122,51 @@ public class LloydsCommand implements Command {
       mlCenters = filter;
     }
     
-    KMeansParallel kmp = new KMeansParallel();
+    KMeansParallel kmp = indexParams.builder(null)
+        .checkpointPath(checkpointPath)
+        .fusedCovariance(covarianceFile != null)
+        .build();
     List<Centers> initial = Lists.transform(mlCenters, VectorConvert.TO_CENTERS);
-    List<Centers> output = kmp.lloydsAlgorithm(input, initial, numIterations, approx);
+    PCollection<Weighted<Vector>> deduped = dedupe ? Dedupe.apply(input) : null;
+    LloydsResult result;
+    if (dedupe) {
+      result = kmp.weightedLloydsAlgorithm(deduped, initial, numIterations, approx,
+          costTolerance, shiftTolerance);
+    } else {
+      result = kmp.lloydsAlgorithm(input, initial, numIterations, approx,
+          costTolerance, shiftTolerance);
+    }
+    List<Centers> output = result.getCenters();
     if (computeCosts) {
-      List<Double> costs = kmp.getCosts(input, output, approx).getValue();
+      List<Double> costs = (dedupe ? kmp.getWeightedCosts(deduped, output, approx)
+          : kmp.getCosts(input, output, approx)).getValue();
       System.out.println("CenterId,Cost");
       for (int i = 0; i < costs.size(); i++) {
         int centerId = centerIds.isEmpty() ? i : centerIds.get(i);
         System.out.println(String.format("%d,%.4f", centerId, costs.get(i)));
       }
     }
+    if (iterationCosts) {
+      System.out.println("Iteration,CenterId,Cost");
+      for (int iter = 0; iter < result.getNumIterations(); iter++) {
+        List<Double> costs = result.getCosts().get(iter);
+        for (int i = 0; i < costs.size(); i++) {
+          int centerId = centerIds.isEmpty() ? i : centerIds.get(i);
+          System.out.println(String.format("%d,%d,%.4f", iter + 1, centerId, costs.get(i)));
+        }
+      }
+    }
     
     AvroIO.write(Lists.transform(output, VectorConvert.FROM_CENTERS), new File(outputCentersFile));
+    if (covarianceFile != null) {
+      List<MLClusterCovariance> covs = result.getCovariances();
+      if (!centerIds.isEmpty()) {
+        for (MLClusterCovariance cov : covs) {
+          cov.setClusteringId(centerIds.get(cov.getClusteringId()));
+        }
+      }
+      AvroIO.write(covs, new File(covarianceFile));
+    }
     p.done();
     return 0;
   }
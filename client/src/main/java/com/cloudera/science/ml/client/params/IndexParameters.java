@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.client.params;
+
+import java.util.Random;
+
+import com.beust.jcommander.Parameter;
+import com.cloudera.science.ml.kmeans.parallel.KMeansParallel;
+
+/**
+ * Options for the index that is used to find the closest center to each point
+ * during parallel k-means processing.
+ */
+public class IndexParameters {
+  @Parameter(names = "--index-bits",
+      description = "The number of bits to use in the centers index data structure")
+  private int indexBits = 128;
+  
+  @Parameter(names = "--index-samples",
+      description = "The number of matching points from the centers index to compare to each vector " +
+          "(also the maximum number of points taken from the buckets of the --index-tables hash tables)")
+  private int indexSamples = 32;
+  
+  @Parameter(names = "--index-tables",
+      description = "If greater than zero, split the index bits evenly across this many hash tables and only " +
+          "compare each vector to the centers that share a bucket with it (faster for large numbers of centers)")
+  private int indexTables = 0;
+  
+  @Parameter(names = "--index-probes",
+      description = "The number of neighboring buckets to check in each of the --index-tables hash tables " +
+          "(higher values improve accuracy at the cost of speed)")
+  private int indexProbes = 2;
+  
+  @Parameter(names = "--ball-tree-leaf-size",
+      description = "If greater than zero, use a ball tree with leaves of this size over the centers for exact " +
+          "(non --approx) assignments (faster for large numbers of centers in low-to-medium dimensions)")
+  private int ballTreeLeafSize = 0;
+  
+  @Parameter(names = "--hnsw-m",
+      description = "If greater than zero, use an HNSW graph in which each center has this many neighbors per " +
+          "layer for approximate assignments (for very large numbers of centers)")
+  private int hnswM = 0;
+  
+  @Parameter(names = "--hnsw-ef-construction",
+      description = "The number of candidate neighbors to consider while building the --hnsw-m graph")
+  private int hnswEfConstruction = 100;
+  
+  @Parameter(names = "--hnsw-ef-search",
+      description = "The number of candidate centers to track while searching the --hnsw-m graph " +
+          "(higher values improve accuracy at the cost of speed)")
+  private int hnswEfSearch = 50;
+  
+  @Parameter(names = "--sparse-index",
+      description = "Store the centers sparsely and hash the index projections (for high-dimensional sparse data; " +
+          "not compatible with --ball-tree-leaf-size or --hnsw-m)")
+  private boolean sparseIndex = false;
+  
+  @Parameter(names = "--single-precision",
+      description = "Store the centers and shuffle the points as floats rather than doubles (not compatible with " +
+          "--sparse-index, --ball-tree-leaf-size or --hnsw-m)")
+  private boolean singlePrecision = false;
+  
+  @Parameter(names = "--norm-pruning",
+      description = "For exact (non --approx) assignments, scan the centers in order of their distance in norm from " +
+          "each vector and stop early (for data with widely spread norms; not compatible with --ball-tree-leaf-size)")
+  private boolean normPruning = false;
+  
+  @Parameter(names = "--early-abandon",
+      description = "For exact (non --approx) assignments of dense vectors, stop computing the distance to a center " +
+          "as soon as it is larger than the closest one found so far (for high-dimensional data; not compatible " +
+          "with --sparse-index or --ball-tree-leaf-size)")
+  private boolean earlyAbandon = false;
+  
+  public KMeansParallel.Builder builder(Random random) {
+    return KMeansParallel.builder()
+        .random(random)
+        .projectionBits(indexBits)
+        .projectionSamples(indexSamples)
+        .numTables(indexTables)
+        .numProbes(indexProbes)
+        .ballTreeLeafSize(ballTreeLeafSize)
+        .hnswM(hnswM)
+        .hnswEfConstruction(hnswEfConstruction)
+        .hnswEfSearch(hnswEfSearch)
+        .sparse(sparseIndex)
+        .singlePrecision(singlePrecision)
+        .normPruning(normPruning)
+        .earlyAbandon(earlyAbandon);
+  }
+  
+  public KMeansParallel createKMeansParallel(Random random) {
+    return builder(random).build();
+  }
+}
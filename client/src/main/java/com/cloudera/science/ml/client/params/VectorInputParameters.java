@@ -42,12 +42,13 @@ import com.google.common.base.Function;
  *     Comma separated paths to be used as input
  *
  * <b>--format</b>
- *     format of the Input. Possible values are seq and avro
+ *     format of the Input. Possible values are seq, avro and avro-float
  */
 public class VectorInputParameters {
 
   public static final String FORMAT_SEQ = "seq";
   public static final String FORMAT_AVRO = "avro";
+  public static final String FORMAT_AVRO_FLOAT = "avro-float";
   
   @Parameter(names = "--input-paths",
       description = "CSV of the input paths to consider",
@@ -56,7 +57,7 @@ public class VectorInputParameters {
   private List<String> inputPaths;
 
   @Parameter(names = "--format",
-      description = "Either 'seq' or 'avro' to describe the format of the input vectors",
+      description = "One of 'seq', 'avro', or 'avro-float' to describe the format of the input vectors",
       required = true)
   private String format;
   
@@ -85,6 +86,13 @@ public class VectorInputParameters {
           return pipeline.read(From.avroFile(input, MLAvros.vector()));
         }
       });
+    } else if (FORMAT_AVRO_FLOAT.equals(format)) {
+      ret = UnionIO.from(paths, new Function<String, PCollection<Vector>>() {
+        @Override
+        public PCollection<Vector> apply(String input) {
+          return pipeline.read(From.avroFile(input, MLAvros.floatVector()));
+        }
+      });
     } else {
       throw new CommandException("Unsupported vector format: " + format);
     }
@@ -43,13 +43,15 @@ import java.util.Locale;
  * Following commands are support
  * <PRE>
  * <b>--output-type</b></br>
- *      Specifies the output format. Possible values are avro and seq (for SequenceFile)
+ *      Specifies the output format. Possible values are avro, avro-float (single-precision
+ *      values), svmlight and seq (for SequenceFile)
  *
  * </PRE>
  */
 public class VectorOutputParameters {
 
   public static final String FORMAT_AVRO = "avro";
+  public static final String FORMAT_AVRO_FLOAT = "avro-float";
   public static final String FORMAT_SEQ = "seq";
   public static final String FORMAT_SVMLIGHT = "svmlight";
   
@@ -58,7 +60,7 @@ public class VectorOutputParameters {
   private static final String KEY_TEXT = "text";
   
   @Parameter(names = "--output-type", required=true,
-      description = "The format for the output vectors, either 'avro', 'svmlight', or 'seq'")
+      description = "The format for the output vectors, one of 'avro', 'avro-float', 'svmlight', or 'seq'")
   private String outputType;
 
   @Parameter(names = "--output-key",
@@ -73,6 +75,12 @@ public class VectorOutputParameters {
         vectors = vectors.parallelDo(IdentityFn.<V>getInstance(), (PType<V>) MLAvros.vector());
       }
       vectors.write(At.avroFile(output, atype), WriteMode.OVERWRITE);
+    } else if (FORMAT_AVRO_FLOAT.equals(outputType)) {
+      AvroType<Vector> atype = MLAvros.floatVector();
+      if (atype != vectors.getPType()) {
+        vectors = vectors.parallelDo(IdentityFn.<V>getInstance(), (PType<V>) atype);
+      }
+      vectors.write(At.avroFile(output, atype), WriteMode.OVERWRITE);
     } else if (FORMAT_SEQ.equals(outputType)) {
       PTypeFamily ptf = WritableTypeFamily.getInstance();
       if (ptf != vectors.getTypeFamily()) {
@@ -16,6 +16,7 @@ package com.cloudera.science.ml.core.vectors;
 
 import java.util.AbstractList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 import org.apache.mahout.math.Vector;
@@ -32,6 +33,10 @@ import com.google.common.collect.Sets;
 public class Centers extends AbstractList<Vector> {
   // The vectors, where each vector is the center of a particular cluster
   private final List<Vector> centers;
+  private final boolean normPruning;
+  // The centers sorted by norm for pruned searches, or null if pruning is disabled or the
+  // centers are not all dense vectors of the same size
+  private final DenseCenters dense;
   
   /**
    * Create a new instance from the given points. Any duplicate
@@ -52,7 +57,22 @@ public class Centers extends AbstractList<Vector> {
    * @throws IllegalArgumentException if the input is empty
    */
   public Centers(Iterable<Vector> points) {
+    this(points, true);
+  }
+  
+  /**
+   * Create a new instance from the given points. Any duplicate
+   * points in the {@code Iterable} instance will be removed.
+   * 
+   * @param points The points
+   * @param normPruning Whether searches for the closest center to a dense point should skip
+   *     the centers whose norms are too far from the point's, or scan every center
+   * @throws IllegalArgumentException if the input is empty
+   */
+  public Centers(Iterable<Vector> points, boolean normPruning) {
     this.centers = ImmutableList.copyOf(Sets.newLinkedHashSet(points));
+    this.normPruning = normPruning;
+    this.dense = normPruning ? DenseCenters.of(centers) : null;
   }
   
   /**
@@ -79,7 +99,7 @@ public class Centers extends AbstractList<Vector> {
    * @return A new {@code Centers} instance
    */
   public Centers extendWith(Vector point) {
-    return new Centers(Iterables.concat(centers, ImmutableList.of(point)));
+    return new Centers(Iterables.concat(centers, ImmutableList.of(point)), normPruning);
   }
   
   /**
@@ -90,7 +110,7 @@ public class Centers extends AbstractList<Vector> {
    * @return A new {@code Centers} instance
    */
   public Centers extendWith(Iterable<Vector> points) {
-    return new Centers(Iterables.concat(centers, points));
+    return new Centers(Iterables.concat(centers, points), normPruning);
   }
   
   /**
@@ -101,6 +121,9 @@ public class Centers extends AbstractList<Vector> {
    * @return The minimum squared Euclidean distance from the point 
    */
   public double getDistanceSquared(Vector point) {
+    if (dense != null && dense.matches(point)) {
+      return dense.distanceSquared(dense.closest(point), point);
+    }
     double min = Double.POSITIVE_INFINITY;
     for (Vector c : centers) {
       min = Math.min(min, c.getDistanceSquared(point));
@@ -118,6 +141,9 @@ public class Centers extends AbstractList<Vector> {
   public int indexOfClosest(Vector point) {
     int index = -1;
     double min = Double.POSITIVE_INFINITY;
+    if (dense != null && dense.matches(point)) {
+      return dense.order[dense.closest(point)];
+    }
     for (int i = 0; i < centers.size(); i++) {
       double d = centers.get(i).getDistanceSquared(point); 
       if (d < min) {
@@ -128,6 +154,112 @@ public class Centers extends AbstractList<Vector> {
     return index;
   }
   
+  /**
+   * Copies of a set of dense centers of the same size, in row-major order and sorted by norm,
+   * with their norms and original indices in the parallel arrays.
+   */
+  private static final class DenseCenters {
+    // Relative slack on the norm bound so that rounding errors can't prune the closest center
+    private static final double NORM_EPSILON = 1e-9;
+    
+    private final double[] points;
+    private final double[] norms;
+    private final int[] order;
+    private final int dimensions;
+    
+    private DenseCenters(double[] points, double[] norms, int[] order, int dimensions) {
+      this.points = points;
+      this.norms = norms;
+      this.order = order;
+      this.dimensions = dimensions;
+    }
+    
+    static DenseCenters of(List<Vector> centers) {
+      int n = centers.size();
+      if (n == 0) {
+        return null;
+      }
+      int dims = centers.get(0).size();
+      final double[] lsq = new double[n];
+      Integer[] ids = new Integer[n];
+      for (int i = 0; i < n; i++) {
+        Vector c = centers.get(i);
+        if (!c.isDense() || c.size() != dims) {
+          return null;
+        }
+        lsq[i] = c.getLengthSquared();
+        ids[i] = i;
+      }
+      Arrays.sort(ids, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          int c = Double.compare(lsq[a], lsq[b]);
+          return c != 0 ? c : a.compareTo(b);
+        }
+      });
+      double[] points = new double[n * dims];
+      double[] norms = new double[n];
+      int[] order = new int[n];
+      for (int k = 0; k < n; k++) {
+        order[k] = ids[k];
+        norms[k] = Math.sqrt(lsq[ids[k]]);
+        Vector c = centers.get(ids[k]);
+        for (int j = 0; j < dims; j++) {
+          points[k * dims + j] = c.getQuick(j);
+        }
+      }
+      return new DenseCenters(points, norms, order, dims);
+    }
+    
+    boolean matches(Vector point) {
+      return point.isDense() && point.size() == dimensions;
+    }
+    
+    /**
+     * Returns the position in norm order of the closest center to a dense point, found by
+     * scanning the centers outwards from the point's norm and stopping once
+     * {@code (||x|| - ||c||)^2} exceeds the closest distance found so far. Ties go to the
+     * lowest original index, so the result is the same as a full scan.
+     */
+    int closest(Vector point) {
+      int n = norms.length;
+      double norm = Math.sqrt(point.getLengthSquared());
+      double scale = norm * norm + norms[n - 1] * norms[n - 1];
+      int hi = Arrays.binarySearch(norms, norm);
+      if (hi < 0) {
+        hi = -hi - 1;
+      }
+      int lo = hi - 1;
+      double best = Double.POSITIVE_INFINITY;
+      int closest = -1;
+      while (lo >= 0 || hi < n) {
+        // Visit whichever side is closer in norm, so the gap only grows as the scan goes on
+        boolean down = hi >= n || (lo >= 0 && norm - norms[lo] <= norms[hi] - norm);
+        int k = down ? lo-- : hi++;
+        double gap = norms[k] - norm;
+        if (gap * gap > best + NORM_EPSILON * (best + scale)) {
+          break;
+        }
+        double d = distanceSquared(k, point);
+        if (closest < 0 || d < best || (d == best && order[k] < order[closest])) {
+          best = d;
+          closest = k;
+        }
+      }
+      return closest;
+    }
+    
+    double distanceSquared(int k, Vector point) {
+      double sum = 0.0;
+      int offset = k * dimensions;
+      for (int j = 0; j < dimensions; j++) {
+        double diff = points[offset + j] - point.getQuick(j);
+        sum += diff * diff;
+      }
+      return sum;
+    }
+  }
+  
   /**
    * Calculate the sum of the element-wise squared distances between this
    * instance and the given {@code Centers}.
@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.core.vectors;
+
+import java.util.Locale;
+
+/**
+ * The inner loops of the distance computations over dense {@code double[]} data that are
+ * shared by the in-memory and parallel k-means implementations.
+ *
+ * <p>The kernel that is used by default is chosen once per JVM from the
+ * {@code ml.distance.kernel} system property (e.g., {@code -Dml.distance.kernel=scalar} in the
+ * child JVM options of a MapReduce job), and is {@link #UNROLLED} if the property is not set
+ * or is not the name of a kernel.
+ */
+public enum DistanceKernel {
+
+  /**
+   * Straightforward loops with a single accumulator.
+   */
+  SCALAR {
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+      double sum = 0.0;
+      for (int i = 0; i < length; i++) {
+        sum += a[aOffset + i] * b[bOffset + i];
+      }
+      return sum;
+    }
+
+    @Override
+    public double dot(double[] a, int aOffset, float[] b, int bOffset, int length) {
+      double sum = 0.0;
+      for (int i = 0; i < length; i++) {
+        sum += a[aOffset + i] * b[bOffset + i];
+      }
+      return sum;
+    }
+
+    @Override
+    public double distanceSquared(double[] a, int aOffset, double[] b, int bOffset, int length) {
+      double sum = 0.0;
+      for (int i = 0; i < length; i++) {
+        double d = a[aOffset + i] - b[bOffset + i];
+        sum += d * d;
+      }
+      return sum;
+    }
+  },
+
+  /**
+   * Loops that are unrolled by four with independent accumulators, which breaks the
+   * dependency chain on a single sum. Whether that is any faster than {@link #SCALAR} depends
+   * on the JVM and the CPU, so compare the two with {@code DistanceKernelBenchmark} before
+   * relying on either one.
+   */
+  UNROLLED {
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+      double s0 = 0.0;
+      double s1 = 0.0;
+      double s2 = 0.0;
+      double s3 = 0.0;
+      int i = 0;
+      for (int end = length - 3; i < end; i += 4) {
+        s0 += a[aOffset + i] * b[bOffset + i];
+        s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+        s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+        s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+      }
+      for (; i < length; i++) {
+        s0 += a[aOffset + i] * b[bOffset + i];
+      }
+      return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public double dot(double[] a, int aOffset, float[] b, int bOffset, int length) {
+      double s0 = 0.0;
+      double s1 = 0.0;
+      double s2 = 0.0;
+      double s3 = 0.0;
+      int i = 0;
+      for (int end = length - 3; i < end; i += 4) {
+        s0 += a[aOffset + i] * b[bOffset + i];
+        s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+        s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+        s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+      }
+      for (; i < length; i++) {
+        s0 += a[aOffset + i] * b[bOffset + i];
+      }
+      return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public double distanceSquared(double[] a, int aOffset, double[] b, int bOffset, int length) {
+      double s0 = 0.0;
+      double s1 = 0.0;
+      double s2 = 0.0;
+      double s3 = 0.0;
+      int i = 0;
+      for (int end = length - 3; i < end; i += 4) {
+        double d0 = a[aOffset + i] - b[bOffset + i];
+        double d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+        double d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+        double d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+        s0 += d0 * d0;
+        s1 += d1 * d1;
+        s2 += d2 * d2;
+        s3 += d3 * d3;
+      }
+      for (; i < length; i++) {
+        double d = a[aOffset + i] - b[bOffset + i];
+        s0 += d * d;
+      }
+      return (s0 + s1) + (s2 + s3);
+    }
+  };
+
+  public static final String PROPERTY = "ml.distance.kernel";
+
+  private static final DistanceKernel DEFAULT = fromProperty(System.getProperty(PROPERTY));
+
+  /**
+   * Returns the kernel that is configured for this JVM.
+   */
+  public static DistanceKernel get() {
+    return DEFAULT;
+  }
+
+  static DistanceKernel fromProperty(String value) {
+    if (value == null || value.isEmpty()) {
+      return UNROLLED;
+    }
+    try {
+      return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+    } catch (IllegalArgumentException e) {
+      // Fall back to the default rather than failing every task over a typo
+      return UNROLLED;
+    }
+  }
+
+  /**
+   * Returns the dot product of {@code length} entries of the two arrays, starting at the
+   * given offsets.
+   */
+  public abstract double dot(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+  /**
+   * Same as {@link #dot(double[], int, double[], int, int)}, for single-precision data in
+   * {@code b}, which is accumulated in double precision.
+   */
+  public abstract double dot(double[] a, int aOffset, float[] b, int bOffset, int length);
+
+  /**
+   * Returns the squared Euclidean distance between {@code length} entries of the two arrays,
+   * starting at the given offsets.
+   */
+  public abstract double distanceSquared(double[] a, int aOffset, double[] b, int bOffset,
+      int length);
+}
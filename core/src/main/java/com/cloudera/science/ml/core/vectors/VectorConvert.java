@@ -23,6 +23,7 @@ import org.apache.mahout.math.RandomAccessSparseVector;
 import org.apache.mahout.math.Vector;
 
 import com.cloudera.science.ml.avro.MLCenters;
+import com.cloudera.science.ml.avro.MLFloatVector;
 import com.cloudera.science.ml.avro.MLVector;
 import com.cloudera.science.ml.avro.MLWeightedVector;
 import com.google.common.base.Function;
@@ -43,6 +44,18 @@ public final class VectorConvert {
     return FROM_VECTOR.apply(input);
   }
   
+  public static Vector toVector(MLFloatVector input) {
+    return FLOAT_TO_VECTOR.apply(input);
+  }
+  
+  /**
+   * Converts the given {@code Vector} to an {@code MLFloatVector}, rounding each of its
+   * values to the nearest float.
+   */
+  public static MLFloatVector fromVectorAsFloat(Vector input) {
+    return FLOAT_FROM_VECTOR.apply(input);
+  }
+  
   public static Weighted<Vector> toWeightedVec(MLWeightedVector input) {
     return TO_WEIGHTED_VEC.apply(input);
   }
@@ -114,6 +127,61 @@ public final class VectorConvert {
     }
   };
 
+  public static final Function<MLFloatVector, Vector> FLOAT_TO_VECTOR = new Function<MLFloatVector, Vector>() {
+    @Override
+    public Vector apply(MLFloatVector input) {
+      Vector base;
+      if (input.getIndices().isEmpty()) {
+        double[] d = new double[input.getSize()];
+        for (int i = 0; i < d.length; i++) {
+          d[i] = input.getValues().get(i);
+        }
+        base = new DenseVector(d);
+      } else {
+        List<Float> values = input.getValues();
+        base = new RandomAccessSparseVector(input.getSize(), values.size());
+        for (int i = 0; i < values.size(); i++) {
+          base.set(input.getIndices().get(i), values.get(i));
+        }
+      }
+      if (input.getId().length() > 0) {
+        base = new NamedVector(base, input.getId().toString());
+      }
+      return base;
+    }
+  };
+  
+  public static final Function<Vector, MLFloatVector> FLOAT_FROM_VECTOR = new Function<Vector, MLFloatVector>() {
+    @Override
+    public MLFloatVector apply(Vector input) {
+      List<Float> values = Lists.newArrayList();
+      MLFloatVector.Builder vb = MLFloatVector.newBuilder()
+          .setSize(input.size())
+          .setValues(values);
+      if (input.isDense()) {
+        vb.setIndices(ImmutableList.<Integer>of());
+        for (int i = 0; i < input.size(); i++) {
+          values.add((float) input.getQuick(i));
+        }
+      } else {
+        List<Integer> indices = Lists.newArrayList();
+        vb.setIndices(indices);
+        Iterator<Vector.Element> iter = input.iterateNonZero();
+        while (iter.hasNext()) {
+          Vector.Element e = iter.next();
+          indices.add(e.index());
+          values.add((float) e.get());
+        }
+      }
+      if (input instanceof NamedVector) {
+        vb.setId(((NamedVector) input).getName());
+      } else {
+        vb.setId("");
+      }
+      return vb.build();
+    }
+  };
+
   public static final Function<MLWeightedVector, Weighted<Vector>> TO_WEIGHTED_VEC = new Function<MLWeightedVector, Weighted<Vector>>() {
     @Override
     public Weighted<Vector> apply(MLWeightedVector input) {
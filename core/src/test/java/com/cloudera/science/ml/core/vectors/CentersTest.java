@@ -16,9 +16,14 @@ package com.cloudera.science.ml.core.vectors;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.List;
+import java.util.Random;
+
 import org.apache.mahout.math.Vector;
 import org.junit.Test;
 
+import com.google.common.collect.Lists;
+
 public class CentersTest {
   private static final double THRESH = 0.001;
   
@@ -44,4 +49,33 @@ public class CentersTest {
     assertEquals(1, centers.indexOfClosest(c));
     assertEquals(0, centers.indexOfClosest(a));
   }
+  
+  @Test
+  public void testMatchesFullScan() throws Exception {
+    Random r = new Random(1729L);
+    List<Vector> points = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      points.add(Vectors.of(r.nextGaussian(), r.nextGaussian(), r.nextGaussian())
+          .times(Math.exp(2 * r.nextGaussian())));
+    }
+    Centers centers = new Centers(points);
+    Centers scanned = new Centers(points, false);
+    for (int i = 0; i < 100; i++) {
+      Vector v = Vectors.of(r.nextGaussian(), r.nextGaussian(), r.nextGaussian())
+          .times(Math.exp(2 * r.nextGaussian()));
+      int closest = -1;
+      double best = Double.POSITIVE_INFINITY;
+      for (int j = 0; j < centers.size(); j++) {
+        double d = centers.get(j).getDistanceSquared(v);
+        if (d < best) {
+          best = d;
+          closest = j;
+        }
+      }
+      assertEquals(closest, centers.indexOfClosest(v));
+      assertEquals(best, centers.getDistanceSquared(v), 1e-9 * best);
+      assertEquals(closest, scanned.indexOfClosest(v));
+      assertEquals(best, scanned.getDistanceSquared(v), 1e-9 * best);
+    }
+  }
 }
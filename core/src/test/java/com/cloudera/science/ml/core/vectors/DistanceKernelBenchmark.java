@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.core.vectors;
+
+import java.util.Random;
+
+/**
+ * Times each {@link DistanceKernel} on the closest-center search over random dense data, for
+ * comparing the kernels on a particular JVM and CPU. It is not run as part of the tests; run it
+ * from the test classpath with optional arguments for the dimensions, the number of centers,
+ * and the number of points.
+ */
+public class DistanceKernelBenchmark {
+
+  public static void main(String[] args) {
+    int dimensions = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    int numCenters = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    int numPoints = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+    Random r = new Random(1729L);
+    double[] centers = random(r, numCenters * dimensions);
+    double[] points = random(r, numPoints * dimensions);
+    for (int round = 0; round < 3; round++) {
+      for (DistanceKernel kernel : DistanceKernel.values()) {
+        long start = System.nanoTime();
+        long checksum = 0;
+        for (int i = 0; i < numPoints; i++) {
+          double best = Double.POSITIVE_INFINITY;
+          int closest = 0;
+          for (int j = 0; j < numCenters; j++) {
+            double d = kernel.distanceSquared(points, i * dimensions, centers, j * dimensions,
+                dimensions);
+            if (d < best) {
+              best = d;
+              closest = j;
+            }
+          }
+          checksum += closest;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s\tround %d\t%.3f s\t%.1f Mdist/s\tchecksum %d%n", kernel, round,
+            seconds, numPoints * (double) numCenters / seconds / 1e6, checksum);
+      }
+    }
+  }
+
+  private static double[] random(Random r, int length) {
+    double[] ret = new double[length];
+    for (int i = 0; i < length; i++) {
+      ret[i] = r.nextGaussian();
+    }
+    return ret;
+  }
+}
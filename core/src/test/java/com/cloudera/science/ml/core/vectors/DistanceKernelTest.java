@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.core.vectors;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DistanceKernelTest {
+  private static final double THRESH = 1e-9;
+
+  @Test
+  public void testKernelsAgree() throws Exception {
+    Random r = new Random(1729L);
+    for (int length = 0; length < 19; length++) {
+      double[] a = new double[length + 3];
+      double[] b = new double[length + 5];
+      for (int i = 0; i < a.length; i++) {
+        a[i] = r.nextGaussian();
+      }
+      for (int i = 0; i < b.length; i++) {
+        b[i] = r.nextGaussian();
+      }
+      double dot = 0.0;
+      double dist = 0.0;
+      for (int i = 0; i < length; i++) {
+        dot += a[3 + i] * b[5 + i];
+        dist += (a[3 + i] - b[5 + i]) * (a[3 + i] - b[5 + i]);
+      }
+      for (DistanceKernel kernel : DistanceKernel.values()) {
+        assertEquals(dot, kernel.dot(a, 3, b, 5, length), THRESH);
+        assertEquals(dist, kernel.distanceSquared(a, 3, b, 5, length), THRESH);
+      }
+    }
+  }
+
+  @Test
+  public void testFromProperty() throws Exception {
+    assertEquals(DistanceKernel.UNROLLED, DistanceKernel.fromProperty(null));
+    assertEquals(DistanceKernel.UNROLLED, DistanceKernel.fromProperty("bogus"));
+    assertEquals(DistanceKernel.SCALAR, DistanceKernel.fromProperty(" scalar"));
+  }
+
+  @Test
+  public void testCentersUseKernel() throws Exception {
+    Centers centers = new Centers(Vectors.of(17.0, 29.0, 1.0), Vectors.of(18.0, 27.0, 2.0));
+    assertEquals(2.0, centers.getDistanceSquared(Vectors.of(16.0, 28.0, 1.0)), THRESH);
+    assertEquals(1, centers.indexOfClosest(Vectors.of(18.0, 26.0, 2.0)));
+    // Sparse points take the Vector path
+    assertEquals(1, centers.indexOfClosest(Vectors.sparse(3)));
+  }
+}
@@ -50,9 +50,11 @@ client/bin/ml normalize --input-paths kddcup.data_10_percent --format text --sum
 # 1000 possible clusters, setting iterations * points-per-iteration to be 5 * 500 = 2500 (as we do below) would be more than
 # enough points in your sketch to find a good clustering (if it exists.)
 #
-# The ksketch commands will run N + 1 MapReduce jobs, where N is controlled by the --iterations argument.
+# The ksketch commands will run N + 1 MapReduce jobs, where N is controlled by the --iterations argument. Most of the
+# normalized kdd99 records are exact copies of one another, so we use the --dedupe flag to collapse them into weighted
+# points in one extra job up front, after which every pass only scores each distinct record once.
 client/bin/ml ksketch --input-paths kdd99 --format avro --points-per-iteration 500 --output-file wc.avro --seed 1729 \
-  --iterations 5 --cross-folds 2
+  --iterations 5 --cross-folds 2 --dedupe
 
 # Runs k-means++ on the sketch that was created by the ksketch command for multiple values of K.
 #
@@ -0,0 +1,253 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import java.io.Serializable;
+
+import org.apache.mahout.math.Vector;
+
+import com.cloudera.science.ml.core.vectors.DistanceKernel;
+
+/**
+ * A ball tree over the centers of a single clustering that supports exact closest-center
+ * queries for {@link CentersIndex} without scanning every center.
+ *
+ * <p>Each node covers a contiguous range of a permutation of the centers and stores the
+ * centroid of those centers along with the radius of the ball around the centroid that
+ * contains all of them. Nodes are split on the dimension with the largest spread at the
+ * median, until they hold at most {@code leafSize} centers. A query descends into the child
+ * whose centroid is closer first, and skips any node whose ball is farther from the query
+ * than the closest center found so far. The tree is stored in flat arrays so that it is cheap
+ * to serialize with the index.
+ */
+class BallTree implements Serializable {
+  // Relative slack on the pruning test so that rounding errors can't prune the closest center
+  private static final double EPSILON = 1e-9;
+  // The inner loops of the dense distance computations, chosen once per task JVM
+  private static final DistanceKernel KERNEL = DistanceKernel.get();
+
+  private final int size;
+  private final int dimensions;
+  private final int[] order;
+  private final int[] start;
+  private final int[] end;
+  private final int[] left;
+  private final int[] right;
+  private final double[] centroids;
+  private final double[] centroidLengthSquared;
+  private final double[] radius;
+  private int numNodes;
+
+  /**
+   * Builds a tree over the first {@code size} centers of the given row-major points.
+   */
+  BallTree(double[] points, int size, int dimensions, int leafSize) {
+    this.size = size;
+    this.dimensions = dimensions;
+    this.order = new int[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    leafSize = Math.max(1, leafSize);
+    int maxNodes = countNodes(size, leafSize);
+    this.start = new int[maxNodes];
+    this.end = new int[maxNodes];
+    this.left = new int[maxNodes];
+    this.right = new int[maxNodes];
+    this.centroids = new double[maxNodes * dimensions];
+    this.centroidLengthSquared = new double[maxNodes];
+    this.radius = new double[maxNodes];
+    if (size > 0) {
+      build(points, 0, size, leafSize);
+    }
+  }
+
+  private static int countNodes(int n, int leafSize) {
+    if (n <= leafSize) {
+      return 1;
+    }
+    return 1 + countNodes(n >>> 1, leafSize) + countNodes(n - (n >>> 1), leafSize);
+  }
+
+  /**
+   * Returns the number of centers in the tree.
+   */
+  int size() {
+    return size;
+  }
+
+  private int build(double[] points, int from, int to, int leafSize) {
+    int node = numNodes++;
+    start[node] = from;
+    end[node] = to;
+    left[node] = -1;
+    right[node] = -1;
+
+    int offset = node * dimensions;
+    for (int i = from; i < to; i++) {
+      int p = order[i] * dimensions;
+      for (int k = 0; k < dimensions; k++) {
+        centroids[offset + k] += points[p + k];
+      }
+    }
+    double lsq = 0.0;
+    for (int k = 0; k < dimensions; k++) {
+      centroids[offset + k] /= (to - from);
+      lsq += centroids[offset + k] * centroids[offset + k];
+    }
+    centroidLengthSquared[node] = lsq;
+    double r = 0.0;
+    for (int i = from; i < to; i++) {
+      int p = order[i] * dimensions;
+      double d = 0.0;
+      for (int k = 0; k < dimensions; k++) {
+        double diff = points[p + k] - centroids[offset + k];
+        d += diff * diff;
+      }
+      r = Math.max(r, d);
+    }
+    radius[node] = Math.sqrt(r);
+
+    if (to - from > leafSize) {
+      int split = splitDimension(points, from, to);
+      int mid = (from + to) >>> 1;
+      select(points, from, to, mid, split);
+      left[node] = build(points, from, mid, leafSize);
+      right[node] = build(points, mid, to, leafSize);
+    }
+    return node;
+  }
+
+  private int splitDimension(double[] points, int from, int to) {
+    int best = 0;
+    double bestSpread = -1.0;
+    for (int k = 0; k < dimensions; k++) {
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      for (int i = from; i < to; i++) {
+        double v = points[order[i] * dimensions + k];
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+      }
+      if (max - min > bestSpread) {
+        bestSpread = max - min;
+        best = k;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Partially sorts {@code order[from, to)} by the given dimension so that the element at
+   * {@code nth} is in its sorted position (quickselect).
+   */
+  private void select(double[] points, int from, int to, int nth, int dim) {
+    int lo = from;
+    int hi = to - 1;
+    while (lo < hi) {
+      double pivot = points[order[(lo + hi) >>> 1] * dimensions + dim];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (points[order[i] * dimensions + dim] < pivot) {
+          i++;
+        }
+        while (points[order[j] * dimensions + dim] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          int tmp = order[i];
+          order[i] = order[j];
+          order[j] = tmp;
+          i++;
+          j--;
+        }
+      }
+      if (nth <= j) {
+        hi = j;
+      } else if (nth >= i) {
+        lo = i;
+      } else {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Finds the closest center to the given vector, breaking ties in favor of the center with
+   * the lower index so that the result matches a linear scan.
+   *
+   * @param vec The query vector
+   * @param q A dense copy of the query vector, or null if it is sparse
+   * @param vecLengthSquared The squared length of the query vector
+   * @param points The row-major points that the tree was built over
+   * @param lengthSquared The squared lengths of the points
+   * @param out Receives the squared distance to the closest center
+   * @param outIndex The index in {@code out} to write the distance to
+   * @return The index of the closest center
+   */
+  int closest(Vector vec, double[] q, double vecLengthSquared, double[] points,
+      double[] lengthSquared, double[] out, int outIndex) {
+    double[] best = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+        Math.sqrt(vecLengthSquared) };
+    int[] closest = { 0 };
+    search(0, vec, q, vecLengthSquared, points, lengthSquared,
+        nodeDistance(0, vec, q, vecLengthSquared), best, closest);
+    out[outIndex] = best[0];
+    return closest[0];
+  }
+
+  private double nodeDistance(int node, Vector vec, double[] q, double vecLengthSquared) {
+    double d = vecLengthSquared + centroidLengthSquared[node]
+        - 2 * dot(vec, q, centroids, node * dimensions);
+    return Math.sqrt(Math.max(d, 0.0));
+  }
+
+  private double dot(Vector vec, double[] q, double[] p, int offset) {
+    return q != null ? KERNEL.dot(q, 0, p, offset, dimensions) : CentersIndex.dot(vec, p, offset);
+  }
+
+  // best[0] is the squared distance to the closest center so far, best[1] is its root, and
+  // best[2] is the length of the query, which scales the rounding error of the distances
+  private void search(int node, Vector vec, double[] q, double vecLengthSquared, double[] points,
+      double[] lengthSquared, double distance, double[] best, int[] closest) {
+    double lowerBound = distance - radius[node];
+    if (lowerBound > best[1] + EPSILON * (distance + radius[node] + best[2])) {
+      return;
+    }
+    if (left[node] < 0) {
+      for (int i = start[node]; i < end[node]; i++) {
+        int j = order[i];
+        double d = vecLengthSquared + lengthSquared[j]
+            - 2 * dot(vec, q, points, j * dimensions);
+        if (d < best[0] || (d == best[0] && j < closest[0])) {
+          best[0] = d;
+          best[1] = Math.sqrt(Math.max(d, 0.0));
+          closest[0] = j;
+        }
+      }
+      return;
+    }
+    double dl = nodeDistance(left[node], vec, q, vecLengthSquared);
+    double dr = nodeDistance(right[node], vec, q, vecLengthSquared);
+    if (dl <= dr) {
+      search(left[node], vec, q, vecLengthSquared, points, lengthSquared, dl, best, closest);
+      search(right[node], vec, q, vecLengthSquared, points, lengthSquared, dr, best, closest);
+    } else {
+      search(right[node], vec, q, vecLengthSquared, points, lengthSquared, dr, best, closest);
+      search(left[node], vec, q, vecLengthSquared, points, lengthSquared, dl, best, closest);
+    }
+  }
+}
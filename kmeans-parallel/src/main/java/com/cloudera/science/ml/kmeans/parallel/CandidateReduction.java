@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import java.util.List;
+import java.util.Random;
+
+import org.apache.mahout.math.Vector;
+
+import com.cloudera.science.ml.core.vectors.DistanceKernel;
+import com.cloudera.science.ml.core.vectors.Weighted;
+import com.google.common.collect.Lists;
+
+/**
+ * Collapses a weighted set of candidate centers down to a smaller one on the client, so that
+ * the candidate set for a fold stays within a memory budget during k-means|| initialization.
+ *
+ * <p>The kept points are chosen by weighted k-means++ seeding over the candidates, and the
+ * weight of every dropped candidate is added to the kept point that is closest to it, so the
+ * result is a coreset of the candidates. The distance from each candidate to its closest kept
+ * point is updated incrementally as points are chosen, so a reduction from {@code n} to
+ * {@code k} points takes {@code O(n * k * d)} time rather than the {@code O(n * k^2 * d)} of
+ * {@code KMeansInitStrategy.PLUS_PLUS} in the kmeans module.
+ */
+class CandidateReduction {
+
+  private CandidateReduction() {
+  }
+
+  /**
+   * Reduces the given candidates to (at most) {@code size} weighted points.
+   *
+   * @param candidates The candidates and their current weights
+   * @param size The number of points to keep
+   * @param random The {@code Random} to use for the seeding
+   * @return The kept candidates, weighted by the total weight of the candidates closest to them
+   */
+  static List<Weighted<Vector>> reduce(List<Weighted<Vector>> candidates, int size,
+      Random random) {
+    int n = candidates.size();
+    if (n <= size) {
+      return candidates;
+    }
+    int dims = candidates.get(0).thing().size();
+    double[][] points = new double[n][];
+    double[] weights = new double[n];
+    for (int i = 0; i < n; i++) {
+      Vector v = candidates.get(i).thing();
+      points[i] = new double[dims];
+      for (int k = 0; k < dims; k++) {
+        points[i][k] = v.getQuick(k);
+      }
+      weights[i] = candidates.get(i).weight();
+    }
+
+    double[] minDistances = new double[n];
+    int[] nearest = new int[n];
+    int[] kept = new int[size];
+    kept[0] = pickByWeight(weights, null, random);
+    for (int i = 0; i < n; i++) {
+      minDistances[i] = distanceSquared(points[i], points[kept[0]]);
+    }
+    int numKept = 1;
+    while (numKept < size) {
+      int next = pickByWeight(weights, minDistances, random);
+      if (next < 0) {
+        // Every remaining candidate is a duplicate of a kept one
+        break;
+      }
+      kept[numKept] = next;
+      for (int i = 0; i < n; i++) {
+        double d = distanceSquared(points[i], points[next]);
+        if (d < minDistances[i]) {
+          minDistances[i] = d;
+          nearest[i] = numKept;
+        }
+      }
+      numKept++;
+    }
+
+    double[] keptWeights = new double[numKept];
+    for (int i = 0; i < n; i++) {
+      keptWeights[nearest[i]] += weights[i];
+    }
+    List<Weighted<Vector>> ret = Lists.newArrayListWithCapacity(numKept);
+    for (int j = 0; j < numKept; j++) {
+      ret.add(new Weighted<Vector>(candidates.get(kept[j]).thing(), keptWeights[j]));
+    }
+    return ret;
+  }
+
+  /**
+   * Picks an index with probability proportional to its weight times its score, or to its
+   * weight alone if {@code scores} is null. Returns -1 if all of the products are zero.
+   */
+  private static int pickByWeight(double[] weights, double[] scores, Random random) {
+    double total = 0.0;
+    for (int i = 0; i < weights.length; i++) {
+      total += scores == null ? weights[i] : weights[i] * scores[i];
+    }
+    if (total <= 0.0) {
+      return scores == null ? 0 : -1;
+    }
+    double r = total * random.nextDouble();
+    int last = -1;
+    for (int i = 0; i < weights.length; i++) {
+      double s = scores == null ? weights[i] : weights[i] * scores[i];
+      if (s > 0.0) {
+        last = i;
+        r -= s;
+        if (r < 0.0) {
+          return i;
+        }
+      }
+    }
+    return last;
+  }
+
+  private static double distanceSquared(double[] a, double[] b) {
+    return DistanceKernel.get().distanceSquared(a, 0, b, 0, a.length);
+  }
+}
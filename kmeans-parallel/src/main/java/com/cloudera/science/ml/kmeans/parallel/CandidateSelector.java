@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import java.util.Arrays;
+
+/**
+ * Selects the stored signatures that are closest in Hamming distance to a query signature
+ * for the approximate lookups in {@link CentersIndex}.
+ *
+ * <p>Hamming distances are bounded by the number of projection bits, so the selection is done
+ * by counting the candidates at each distance and taking every candidate below the cutoff
+ * distance plus as many as are needed at the cutoff, which is linear in the number of
+ * signatures. All of the buffers are reused across calls, so an instance should be created
+ * once per {@code DoFn} (or thread) and is not safe for concurrent use.
+ *
+ * <p>When the index uses multiple {@link LshTables}, the candidates are instead the centers
+ * that share a bucket with the query in any table, where the query is also looked up in the
+ * neighboring buckets reached by flipping the bits whose projections were closest to zero
+ * (i.e., the bits that were most likely to disagree with a nearby center). The same bound on
+ * the number of candidates applies, so a crowded bucket can't turn a lookup into a scan of
+ * most of the centers.
+ */
+class CandidateSelector {
+  private final long[] query;
+  private final double[] projection;
+  private final int[] counts;
+  private final int maxCandidates;
+  private int[] selected;
+  private int[] distances;
+  private int numSelected;
+  private int[] probeKeys;
+  private int probesPerTable;
+  private int[] visited;
+  private int stamp;
+
+  CandidateSelector(int projectionBits, int maxCandidates) {
+    this.query = new long[(projectionBits + Long.SIZE - 1) / Long.SIZE];
+    this.projection = new double[projectionBits];
+    this.counts = new int[projectionBits + 1];
+    this.maxCandidates = maxCandidates;
+    this.selected = new int[maxCandidates];
+    this.distances = new int[0];
+    this.probeKeys = new int[0];
+    this.visited = new int[0];
+  }
+
+  /**
+   * Returns the buffer used for the random projection of the query vector.
+   */
+  double[] getProjection() {
+    return projection;
+  }
+
+  /**
+   * Returns the buffer that the packed signature of the query vector should be written to
+   * before calling {@link #select(long[], int)}.
+   */
+  long[] getQuery() {
+    return query;
+  }
+
+  /**
+   * Selects the (at most) {@code maxCandidates} signatures closest to the query, breaking
+   * ties at the cutoff distance in favor of the earlier signatures. The selection is still
+   * approximate: the center that is actually closest to the query can have a signature that is
+   * not among the selected ones, in which case the lookup returns a farther center.
+   *
+   * @param signatures The packed signatures of the stored centers
+   * @param numSignatures The number of signatures stored in {@code signatures}
+   * @return The number of selected candidates
+   */
+  int select(long[] signatures, int numSignatures) {
+    if (numSignatures <= maxCandidates) {
+      for (int j = 0; j < numSignatures; j++) {
+        selected[j] = j;
+      }
+      numSelected = numSignatures;
+      return numSelected;
+    }
+
+    if (distances.length < numSignatures) {
+      distances = new int[Math.max(numSignatures, 2 * distances.length)];
+    }
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = 0;
+    }
+    int words = query.length;
+    for (int j = 0; j < numSignatures; j++) {
+      int d = hammingDistance(query, signatures, j * words);
+      distances[j] = d;
+      counts[d]++;
+    }
+
+    // Find the cutoff distance and how many candidates are taken at exactly that distance
+    int cutoff = 0;
+    int remaining = maxCandidates;
+    while (counts[cutoff] < remaining) {
+      remaining -= counts[cutoff];
+      cutoff++;
+    }
+
+    numSelected = 0;
+    for (int j = 0; j < numSignatures && numSelected < maxCandidates; j++) {
+      int d = distances[j];
+      if (d < cutoff) {
+        selected[numSelected++] = j;
+      } else if (d == cutoff && remaining > 0) {
+        selected[numSelected++] = j;
+        remaining--;
+      }
+    }
+    return numSelected;
+  }
+
+  /**
+   * Computes the bucket keys that the query should be looked up under in each of the hash
+   * tables: its own bucket, plus the {@code numProbes} buckets that differ from it in the
+   * least confident bits of the table.
+   */
+  void computeProbes(int numTables, int tableBits, int numProbes) {
+    probesPerTable = 1 + Math.min(numProbes, tableBits);
+    if (probeKeys.length < numTables * probesPerTable) {
+      probeKeys = new int[numTables * probesPerTable];
+    }
+    for (int t = 0; t < numTables; t++) {
+      int start = t * tableBits;
+      int key = LshTables.key(query, 0, start, tableBits);
+      int base = t * probesPerTable;
+      probeKeys[base] = key;
+      int flipped = 0;
+      for (int p = 1; p < probesPerTable; p++) {
+        int best = -1;
+        for (int k = 0; k < tableBits; k++) {
+          if ((flipped & (1 << k)) == 0 && (best < 0
+              || Math.abs(projection[start + k]) < Math.abs(projection[start + best]))) {
+            best = k;
+          }
+        }
+        flipped |= 1 << best;
+        probeKeys[base + p] = key ^ (1 << best);
+      }
+    }
+  }
+
+  /**
+   * Selects the centers that appear in the buckets chosen by the last call to
+   * {@link #computeProbes(int, int, int)}, without duplicates, stopping once
+   * {@code maxCandidates} have been found. The query's own bucket in every table is read
+   * before any of the neighboring buckets, so that the bound drops the least likely candidates
+   * when a bucket is crowded.
+   *
+   * @return The number of selected candidates
+   */
+  int select(LshTables tables, int numTables) {
+    if (visited.length < tables.size()) {
+      visited = new int[Math.max(tables.size(), 2 * visited.length)];
+    }
+    if (++stamp == Integer.MAX_VALUE) {
+      Arrays.fill(visited, 0);
+      stamp = 1;
+    }
+    numSelected = 0;
+    for (int p = 0; p < probesPerTable; p++) {
+      for (int t = 0; t < numTables; t++) {
+        int key = probeKeys[t * probesPerTable + p];
+        for (int c = tables.first(t, key); c >= 0; c = tables.next(t, c)) {
+          if (numSelected == maxCandidates) {
+            return numSelected;
+          }
+          if (visited[c] != stamp) {
+            visited[c] = stamp;
+            selected[numSelected++] = c;
+          }
+        }
+      }
+    }
+    return numSelected;
+  }
+
+  /**
+   * Returns the index of the {@code i}th candidate chosen by the last call to one of the
+   * {@code select} methods.
+   */
+  int get(int i) {
+    return selected[i];
+  }
+
+  static int hammingDistance(long[] q, long[] signatures, int offset) {
+    int distance = 0;
+    for (int i = 0; i < q.length; i++) {
+      distance += Long.bitCount(q[i] ^ signatures[offset + i]);
+    }
+    return distance;
+  }
+}
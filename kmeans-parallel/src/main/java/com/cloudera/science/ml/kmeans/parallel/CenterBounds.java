@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import com.cloudera.science.ml.core.vectors.DistanceKernel;
+
+/**
+ * Center-to-center distances for a single clustering that let exact lookups in
+ * {@link CentersIndex} skip centers via the triangle inequality, as in Elkan (2003) and
+ * Hamerly (2010).
+ *
+ * <p>If {@code x} is at distance {@code d} from center {@code b}, then any center {@code c} with
+ * {@code d(b, c) / 2 >= d} cannot be closer to {@code x} than {@code b} is, and if {@code d} is
+ * no more than half of the distance from {@code b} to its nearest other center, then no
+ * center can be. The half distances are stored as floats that are rounded down, so the
+ * bounds remain safe.
+ */
+class CenterBounds {
+  private final int numCenters;
+  private final float[] halfDistances;
+  private final float[] halfNearest;
+
+  CenterBounds(double[] points, int numCenters, int dimensions) {
+    DistanceKernel kernel = DistanceKernel.get();
+    this.numCenters = numCenters;
+    this.halfDistances = new float[numCenters * numCenters];
+    this.halfNearest = new float[numCenters];
+    for (int i = 0; i < numCenters; i++) {
+      halfNearest[i] = Float.POSITIVE_INFINITY;
+    }
+    for (int i = 0; i < numCenters; i++) {
+      for (int j = i + 1; j < numCenters; j++) {
+        double d = kernel.distanceSquared(points, i * dimensions, points, j * dimensions,
+            dimensions);
+        float half = roundDown(Math.sqrt(d) / 2);
+        halfDistances[i * numCenters + j] = half;
+        halfDistances[j * numCenters + i] = half;
+        if (half < halfNearest[i]) {
+          halfNearest[i] = half;
+        }
+        if (half < halfNearest[j]) {
+          halfNearest[j] = half;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns half of the distance between the two centers.
+   */
+  float halfDistance(int center, int other) {
+    return halfDistances[center * numCenters + other];
+  }
+
+  /**
+   * Returns half of the distance from the given center to its nearest other center.
+   */
+  float halfNearest(int center) {
+    return halfNearest[center];
+  }
+
+  private static float roundDown(double value) {
+    float f = (float) value;
+    return f > value ? Math.nextAfter(f, Double.NEGATIVE_INFINITY) : f;
+  }
+}
@@ -15,18 +15,34 @@
 package com.cloudera.science.ml.kmeans.parallel;
 
 import com.cloudera.science.ml.core.vectors.Centers;
+import com.cloudera.science.ml.core.vectors.DistanceKernel;
 import com.cloudera.science.ml.core.vectors.Vectors;
 import com.cloudera.science.ml.core.vectors.Weighted;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
-import java.util.BitSet;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
-import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 import org.apache.mahout.math.Vector;
 
 /**
@@ -34,26 +50,122 @@ import org.apache.mahout.math.Vector;
  * k-means|| processing.
  */
 class CentersIndex implements Serializable {
+  // Bounds the size of the bucket arrays, which are allocated densely for each table
+  static final int MAX_TABLE_BITS = 20;
+  // Clusterings with more centers than this are not pruned, since the bounds are quadratic: a
+  // float for every pair of centers, or 16MB per clustering at this size. The bounds are built
+  // once per task and used by every exact lookup, whether single or blocked.
+  static final int MAX_PRUNED_CENTERS = 2048;
+  // The number of doubles of center coordinates in each tile of the blocked exact kernel,
+  // sized to stay in the L1/L2 cache while a block of vectors is compared to it
+  static final int CENTER_TILE_DOUBLES = 4096;
+  // Relative slack on the norm and center bounds so that rounding errors can't prune the
+  // closest center
+  private static final double NORM_EPSILON = 1e-9;
+  // The number of dimensions that early-abandoning scans add up between checks of the bound
+  static final int ABANDON_CHUNK = 16;
+  // The version of the compact serialized form that is written by write(DataOutputStream)
+  private static final int FORMAT_VERSION = 1;
+  private static final byte DENSE = 0;
+  private static final byte FLOAT = 1;
+  private static final byte SPARSE = 2;
+  
+  // Deserialized indices, keyed by a hash of their serialized form, so that the DoFns of a
+  // task and the tasks of a reused JVM share a single read-only copy of each index
+  private static final Cache<String, CentersIndex> SHARED = CacheBuilder.newBuilder()
+      .softValues()
+      .build();
+  // The inner loops of the dense distance computations, chosen once per task JVM
+  private static final DistanceKernel KERNEL = DistanceKernel.get();
+  
   private final int[] pointsPerCenter;
-  private final List<List<BitSet>> indices;
-  private final List<List<double[]>> points;
-  private final List<List<Double>> lengthSquared;
+  // Packed projection signatures for the first indexedPoints[i] centers of each clustering
+  private final long[][] indices;
+  private final int[] indexedPoints;
+  // Row-major center coordinates for each clustering, grown as centers are added
+  private final double[][] points;
+  private final double[][] lengthSquared;
   private final int dimensions;
   private final int projectionBits;
   private final int projectionSamples;
+  private final int signatureWords;
+  private final int numTables;
+  private final int numProbes;
   private final long seed;
+  // Exact lookups use a ball tree over each clustering's centers when this is positive
+  private int ballTreeLeafSize;
+  private BallTree[] trees;
+  // Approximate lookups search an HNSW graph over each clustering's centers when this is set
+  private HnswGraph[] graphs;
+  private int efSearch;
+  // Centers are stored sparsely, and projected with hashed signs, when this is set
+  private SparseCenters[] sparseCenters;
+  // Dense centers are stored here in single precision, instead of in points, when this is set
+  private float[][] floatPoints;
+  // Exact lookups scan the centers outwards from the query's norm when this is set
+  private boolean normPruning;
+  // Exact lookups of dense vectors abandon each center once its partial distance is too large
+  private boolean earlyAbandon;
   
-  private double[] projection;
-  private boolean updated;
+  // Regenerated from the seed on demand rather than serialized with the index
+  private transient double[] projection;
+  private transient LshTables[] tables;
+  private transient CenterBounds[] bounds;
+  // The centers of each clustering ordered by their norms, and the norms in that order
+  private transient int[][] normOrder;
+  private transient double[][] sortedNorms;
+  // The dimensions in decreasing order of the variance of the centers, and each clustering's
+  // centers with their coordinates in that order
+  private transient int[] dimensionOrder;
+  private transient double[][] permutedPoints;
+  // Set on deserialized instances, which may be shared between threads and so have all of
+  // the structures above built up front and must not be modified
+  private transient boolean shared;
   
+  /**
+   * The closest center in each clustering to a query vector. Instances created by
+   * {@link CentersIndex#newDistances()} are overwritten by every lookup that they are
+   * passed to, so that {@code DoFn}s do not allocate a new result for every input.
+   */
   public static class Distances {
-    public double[] clusterDistances;
-    public int[] closestPoints;
+    public final double[] clusterDistances;
+    public final int[] closestPoints;
+    private CandidateSelector selector;
+    private HnswGraph.Search search;
+    // A dense copy of the current query for the distance kernel, if the centers are dense
+    private double[] query;
+    // The query with its coordinates in the order of the early-abandoning scans
+    private double[] permutedQuery;
+    // The number of exact center distances computed by lookups into this instance, which lets
+    // tests check how much the pruning modes skip
+    long distancesComputed;
+    // The number of multi-table lookups into this instance that found no center in any probed
+    // bucket and fell back to ranking every signature
+    long fallbacks;
     
     public Distances(double[] clusterDistances, int[] closestPoints) {
       this.clusterDistances = clusterDistances;
       this.closestPoints = closestPoints;
     }
+    
+    /**
+     * Adds the number of fallbacks to a full signature scan since the last report to the
+     * {@link Counter#LSH_FALLBACKS} counter of the given task, so that the cost of a poor
+     * split of the projection bits into tables shows up in the job's counters.
+     */
+    void reportFallbacks(TaskInputOutputContext<?, ?, ?, ?> context) {
+      if (fallbacks > 0 && context != null) {
+        context.getCounter(Counter.LSH_FALLBACKS).increment(fallbacks);
+        fallbacks = 0;
+      }
+    }
+  }
+  
+  /**
+   * The counters that the {@code DoFn}s which query an index report to.
+   */
+  enum Counter {
+    LSH_FALLBACKS
   }
   
   CentersIndex(int numClusterings, int dimensions) {
@@ -62,17 +174,44 @@ class CentersIndex implements Serializable {
   
   CentersIndex(int numClusterings, int dimensions, int projectionBits, int projectionSamples,
       long seed) {
+    this(numClusterings, dimensions, projectionBits, projectionSamples, 0, 0, seed);
+  }
+  
+  /**
+   * Creates an index whose approximate lookups use {@code numTables} hash tables, each keyed by
+   * {@code projectionBits / numTables} bits of the projection signatures (which must divide
+   * evenly), probing
+   * {@code numProbes} neighboring buckets per table and checking at most
+   * {@code projectionSamples} of the centers found there. When {@code numTables} is zero, the
+   * query signature is compared to every stored signature and the {@code projectionSamples}
+   * closest centers are checked.
+   */
+  CentersIndex(int numClusterings, int dimensions, int projectionBits, int projectionSamples,
+      int numTables, int numProbes, long seed) {
+    Preconditions.checkArgument(numTables >= 0 && numProbes >= 0,
+        "Number of tables and probes must be non-negative");
+    Preconditions.checkArgument(numTables == 0 || projectionBits / numTables <= MAX_TABLE_BITS,
+        "At most %s projection bits per table are supported", MAX_TABLE_BITS);
+    Preconditions.checkArgument(numTables <= projectionBits,
+        "Number of tables cannot be greater than the number of projection bits");
+    Preconditions.checkArgument(numTables == 0 || projectionBits % numTables == 0,
+        "The projection bits must be split evenly across the tables");
     this.pointsPerCenter = new int[numClusterings];
-    this.indices = Lists.newArrayList();
-    this.points = Lists.newArrayList();
-    this.lengthSquared = Lists.newArrayList();
+    this.indices = new long[numClusterings][];
+    this.indexedPoints = new int[numClusterings];
+    this.points = new double[numClusterings][];
+    this.lengthSquared = new double[numClusterings][];
     for (int i = 0; i < numClusterings; i++) {
-      points.add(Lists.<double[]>newArrayList());
-      lengthSquared.add(Lists.<Double>newArrayList());
+      points[i] = new double[0];
+      lengthSquared[i] = new double[0];
+      indices[i] = new long[0];
     }
     this.dimensions = dimensions;
     this.projectionBits = projectionBits;
     this.projectionSamples = projectionSamples;
+    this.signatureWords = (projectionBits + Long.SIZE - 1) / Long.SIZE;
+    this.numTables = numTables;
+    this.numProbes = numProbes;
     this.seed = seed;
   }
   
@@ -81,7 +220,13 @@ class CentersIndex implements Serializable {
   }
   
   CentersIndex(List<Centers> centers, int projectionBits, int projectionSamples, long seed) {
-    this(centers.size(), centers.get(0).get(0).size(), projectionBits, projectionSamples, seed);
+    this(centers, projectionBits, projectionSamples, 0, 0, seed);
+  }
+  
+  CentersIndex(List<Centers> centers, int projectionBits, int projectionSamples,
+      int numTables, int numProbes, long seed) {
+    this(centers.size(), centers.get(0).get(0).size(), projectionBits, projectionSamples,
+        numTables, numProbes, seed);
     for (int centerId = 0; centerId < centers.size(); centerId++) {
       for (Vector v : centers.get(centerId)) {
         add(v, centerId);
@@ -89,6 +234,115 @@ class CentersIndex implements Serializable {
     }
   }
   
+  /**
+   * Stores the centers in compressed sparse rows rather than as dense arrays, and computes
+   * the random projections from a hash of the seed, dimension and bit (as random signs)
+   * rather than from a materialized {@code dimensions x projectionBits} matrix, so that the
+   * memory used by the index scales with the number of nonzeros in the centers. This must be
+   * called before any centers are added, and is not compatible with the ball tree and HNSW
+   * backends, which need dense centers.
+   */
+  void useSparseStorage() {
+    for (int n : pointsPerCenter) {
+      Preconditions.checkState(n == 0, "Sparse storage must be enabled before centers are added");
+    }
+    Preconditions.checkState(trees == null && graphs == null,
+        "Sparse storage is not supported by the ball tree or HNSW backends");
+    Preconditions.checkState(floatPoints == null, "Sparse storage cannot be used with floats");
+    Preconditions.checkState(!earlyAbandon, "Sparse storage cannot be used with early abandoning");
+    this.sparseCenters = new SparseCenters[pointsPerCenter.length];
+    for (int i = 0; i < sparseCenters.length; i++) {
+      sparseCenters[i] = new SparseCenters();
+    }
+  }
+  
+  /**
+   * Stores the coordinates of the centers as floats rather than doubles, which halves the
+   * memory and cache footprint of dense centers; distances are still accumulated in double
+   * precision. This must be called before any centers are added, and is not compatible with
+   * sparse storage or with the ball tree and HNSW backends.
+   */
+  void useFloatStorage() {
+    for (int n : pointsPerCenter) {
+      Preconditions.checkState(n == 0, "Float storage must be enabled before centers are added");
+    }
+    Preconditions.checkState(sparseCenters == null && trees == null && graphs == null,
+        "Float storage is not supported by sparse storage or the ball tree or HNSW backends");
+    this.floatPoints = new float[pointsPerCenter.length][];
+    for (int i = 0; i < floatPoints.length; i++) {
+      floatPoints[i] = new float[0];
+    }
+  }
+  
+  /**
+   * Orders the centers of each clustering by their norms for exact lookups, which then start
+   * at the centers whose norms are closest to the query's and scan outwards in both
+   * directions, stopping once {@code (||x|| - ||c||)^2} exceeds the closest distance found
+   * so far, since no center with a norm further away can be any closer. This replaces the
+   * center-to-center bounds, suits data whose norms are widely spread, and cannot be combined
+   * with ball trees.
+   */
+  void useNormPruning() {
+    Preconditions.checkState(ballTreeLeafSize == 0, "Norm pruning cannot be used with ball trees");
+    this.normPruning = true;
+  }
+  
+  /**
+   * Computes the exact distances from dense vectors to the centers as sums of squared
+   * differences that are checked against the closest distance found so far every
+   * {@link #ABANDON_CHUNK} dimensions, and abandons a center as soon as its partial sum is
+   * larger. The dimensions are visited in decreasing order of the variance of the centers
+   * along them, so that the sums grow as quickly as possible. Sparse vectors are looked up as
+   * usual. This can be combined with norm pruning, but not with sparse storage or ball trees.
+   */
+  void useEarlyAbandon() {
+    Preconditions.checkState(sparseCenters == null && ballTreeLeafSize == 0,
+        "Early abandoning requires dense centers and cannot be used with ball trees");
+    this.earlyAbandon = true;
+  }
+  
+  /**
+   * Answers exact lookups with a {@link BallTree} over the centers of each clustering, whose
+   * leaves hold at most {@code leafSize} centers, instead of a (pruned) scan over all of them.
+   * The trees are built immediately, so that they are serialized along with the index.
+   */
+  void useBallTrees(int leafSize) {
+    Preconditions.checkArgument(leafSize > 0, "Ball tree leaf size must be positive");
+    Preconditions.checkState(sparseCenters == null && floatPoints == null,
+        "Ball trees require dense double-precision centers");
+    Preconditions.checkState(!normPruning && !earlyAbandon,
+        "Ball trees cannot be used with norm pruning or early abandoning");
+    this.ballTreeLeafSize = leafSize;
+    buildTrees();
+  }
+  
+  /**
+   * Answers approximate lookups by searching an {@link HnswGraph} over the centers of each
+   * clustering instead of via the random projections. Each center is linked to {@code m}
+   * neighbors per layer, the graphs are built with a search breadth of
+   * {@code efConstruction}, and lookups keep track of the {@code efSearch} closest centers
+   * that they have found. The graphs are built immediately, so that they are serialized
+   * along with the index.
+   */
+  void useHnsw(int m, int efConstruction, int efSearch) {
+    Preconditions.checkArgument(m > 0 && efConstruction > 0 && efSearch > 0,
+        "HNSW parameters must be positive");
+    Preconditions.checkState(sparseCenters == null && floatPoints == null,
+        "HNSW graphs require dense double-precision centers");
+    this.graphs = new HnswGraph[points.length];
+    for (int i = 0; i < points.length; i++) {
+      graphs[i] = new HnswGraph(dimensions, m, efConstruction, seed + i);
+    }
+    this.efSearch = efSearch;
+    updateGraphs();
+  }
+  
+  private void updateGraphs() {
+    for (int i = 0; i < points.length; i++) {
+      graphs[i].update(points[i], lengthSquared[i], pointsPerCenter[i]);
+    }
+  }
+  
   public int getNumCenters() {
     return pointsPerCenter.length;
   }
@@ -96,36 +350,133 @@ class CentersIndex implements Serializable {
   public int[] getPointsPerCluster() {
     return pointsPerCenter;
   }
+
+  public int getDimensions() {
+    return dimensions;
+  }
+  
+  private boolean isIndexed() {
+    for (int i = 0; i < pointsPerCenter.length; i++) {
+      if (indexedPoints[i] < pointsPerCenter[i]) {
+        return false;
+      }
+      if (tables != null && tables[i].size() < pointsPerCenter[i]) {
+        return false;
+      }
+    }
+    return (projection != null || sparseCenters != null) && (numTables == 0 || tables != null);
+  }
   
-  private void buildIndices() {
-    if (projection == null) {
+  /**
+   * Computes the projection signatures of the centers that have been added since the last
+   * time the index was updated. The projection is fixed by the seed, so the signatures of
+   * existing centers never change and the cost of an update is proportional to the number
+   * of new centers.
+   */
+  public void updateIndices() {
+    if (graphs != null) {
+      updateGraphs();
+      return;
+    }
+    if (projection == null && sparseCenters == null) {
       Random r = new Random(seed);
       this.projection = new double[dimensions * projectionBits];
       for (int i = 0; i < projection.length; i++) {
         projection[i] = r.nextGaussian();
       }
     }
-    indices.clear();
-    for (List<double[]> px : points) {
-      List<BitSet> indx = Lists.newArrayList();
-      for (double[] aPx : px) {
-        indx.add(index(Vectors.of(aPx)));
+    double[] prod = new double[projectionBits];
+    for (int i = 0; i < points.length; i++) {
+      int n = pointsPerCenter[i];
+      if (indexedPoints[i] < n) {
+        if (indices[i].length < n * signatureWords) {
+          indices[i] = Arrays.copyOf(indices[i], lengthSquared[i].length * signatureWords);
+        }
+        for (int j = indexedPoints[i]; j < n; j++) {
+          if (sparseCenters != null) {
+            index(sparseCenters[i], j, prod, indices[i], j * signatureWords);
+          } else if (floatPoints != null) {
+            index(floatPoints[i], j * dimensions, prod, indices[i], j * signatureWords);
+          } else {
+            index(points[i], j * dimensions, prod, indices[i], j * signatureWords);
+          }
+        }
+        indexedPoints[i] = n;
+      }
+    }
+    if (numTables > 0) {
+      if (tables == null) {
+        this.tables = new LshTables[points.length];
+        for (int i = 0; i < points.length; i++) {
+          tables[i] = new LshTables(numTables, projectionBits / numTables);
+        }
+      }
+      for (int i = 0; i < points.length; i++) {
+        tables[i].update(indices[i], signatureWords, pointsPerCenter[i]);
       }
-      indices.add(indx);
     }
-    updated = false;
   }
   
   public void add(Vector vec, int centerId) {
-    points.get(centerId).add(Vectors.toArray(vec));
-    lengthSquared.get(centerId).add(vec.getLengthSquared());
+    Preconditions.checkState(!shared, "Cannot add centers to a shared (deserialized) index");
+    int n = pointsPerCenter[centerId];
+    if (n == lengthSquared[centerId].length) {
+      int capacity = Math.max(4, 2 * n);
+      if (floatPoints != null) {
+        floatPoints[centerId] = Arrays.copyOf(floatPoints[centerId], capacity * dimensions);
+      } else if (sparseCenters == null) {
+        points[centerId] = Arrays.copyOf(points[centerId], capacity * dimensions);
+      }
+      lengthSquared[centerId] = Arrays.copyOf(lengthSquared[centerId], capacity);
+    }
+    double lsq = vec.getLengthSquared();
+    if (sparseCenters != null) {
+      sparseCenters[centerId].add(vec);
+    } else if (floatPoints != null) {
+      float[] p = floatPoints[centerId];
+      int offset = n * dimensions;
+      lsq = 0.0;
+      for (int i = 0; i < dimensions; i++) {
+        float v = (float) vec.getQuick(i);
+        p[offset + i] = v;
+        lsq += (double) v * v; // The length of the rounded center, so distances stay consistent
+      }
+    } else {
+      double[] p = points[centerId];
+      int offset = n * dimensions;
+      for (int i = 0; i < dimensions; i++) {
+        p[offset + i] = vec.getQuick(i);
+      }
+    }
+    lengthSquared[centerId][n] = lsq;
     pointsPerCenter[centerId]++;
-    updated = true;
+    bounds = null;
+    normOrder = null;
+    permutedPoints = null;
   }
   
-  private BitSet index(Vector vec) {
-    double[] prod = new double[projectionBits];
-    if (vec.isDense()) {
+  /**
+   * Writes the sign bits of the random projection of the given vector into
+   * {@code signatureWords} packed longs of {@code out}, starting at {@code offset}.
+   */
+  private void index(Vector vec, double[] prod, long[] out, int offset) {
+    Arrays.fill(prod, 0.0);
+    if (sparseCenters != null) {
+      if (vec.isDense()) {
+        for (int i = 0; i < vec.size(); i++) {
+          double v = vec.getQuick(i);
+          if (v != 0.0) {
+            project(i, v, prod);
+          }
+        }
+      } else {
+        Iterator<Vector.Element> iter = vec.iterateNonZero();
+        while (iter.hasNext()) {
+          Vector.Element e = iter.next();
+          project(e.index(), e.get(), prod);
+        }
+      }
+    } else if (vec.isDense()) {
       for (int i = 0; i < vec.size(); i++) {
         double v = vec.getQuick(i);
         if (v != 0.0) {
@@ -143,122 +494,623 @@ class CentersIndex implements Serializable {
         }
       }
     }
-    BitSet bitset = new BitSet(projectionBits);
+    signBits(prod, out, offset);
+  }
+  
+  /**
+   * Same as {@link #index(Vector, double[], long[], int)}, for a center stored at the given
+   * offset of a row-major array.
+   */
+  private void index(double[] data, int dataOffset, double[] prod, long[] out, int offset) {
+    Arrays.fill(prod, 0.0);
+    for (int i = 0; i < dimensions; i++) {
+      double v = data[dataOffset + i];
+      if (v != 0.0) {
+        for (int j = 0; j < projectionBits; j++) {
+          prod[j] += v * projection[i + j * dimensions];
+        }
+      }
+    }
+    signBits(prod, out, offset);
+  }
+  
+  /**
+   * Same as {@link #index(Vector, double[], long[], int)}, for a center stored in single
+   * precision at the given offset of a row-major array.
+   */
+  private void index(float[] data, int dataOffset, double[] prod, long[] out, int offset) {
+    Arrays.fill(prod, 0.0);
+    for (int i = 0; i < dimensions; i++) {
+      double v = data[dataOffset + i];
+      if (v != 0.0) {
+        for (int j = 0; j < projectionBits; j++) {
+          prod[j] += v * projection[i + j * dimensions];
+        }
+      }
+    }
+    signBits(prod, out, offset);
+  }
+  
+  /**
+   * Same as {@link #index(Vector, double[], long[], int)}, for a sparsely stored center.
+   */
+  private void index(SparseCenters centers, int center, double[] prod, long[] out, int offset) {
+    Arrays.fill(prod, 0.0);
+    for (int k = centers.start(center); k < centers.end(center); k++) {
+      project(centers.index(k), centers.value(k), prod);
+    }
+    signBits(prod, out, offset);
+  }
+  
+  /**
+   * Adds {@code value} times the hashed projection of the given dimension to {@code prod}.
+   * Each projection entry is a random sign, and the signs for 64 bits at a time come from
+   * a single hash of the seed, the dimension, and the index of the word.
+   */
+  private void project(int dimension, double value, double[] prod) {
+    for (int w = 0; w < signatureWords; w++) {
+      long signs = mix(seed + 0x9E3779B97F4A7C15L * dimension + 0xC2B2AE3D27D4EB4FL * w);
+      int base = w * Long.SIZE;
+      int bits = Math.min(Long.SIZE, projectionBits - base);
+      for (int b = 0; b < bits; b++) {
+        prod[base + b] += ((signs >>> b) & 1L) != 0 ? value : -value;
+      }
+    }
+  }
+  
+  // The finalizer of the SplitMix64 generator
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+  
+  private void signBits(double[] prod, long[] out, int offset) {
+    for (int i = 0; i < signatureWords; i++) {
+      out[offset + i] = 0L;
+    }
     for (int i = 0; i < projectionBits; i++) {
       if (prod[i] > 0.0) {
-        bitset.set(i);
+        out[offset + i / Long.SIZE] |= 1L << (i % Long.SIZE);
       }
     }
-    return bitset;
   }
   
+  /**
+   * Returns the packed projection signature of the given vector, as it is compared to the
+   * signatures of the centers during approximate lookups.
+   */
+  long[] signature(Vector vec) {
+    if (!isIndexed()) {
+      updateIndices();
+    }
+    long[] out = new long[signatureWords];
+    index(vec, new double[projectionBits], out, 0);
+    return out;
+  }
+  
+  /**
+   * Creates a reusable result (and the scratch space for approximate lookups) for this
+   * index; each {@code DoFn} should create its own instance when it is initialized.
+   */
+  public Distances newDistances() {
+    Distances d = new Distances(new double[pointsPerCenter.length], new int[pointsPerCenter.length]);
+    if (graphs != null) {
+      d.search = new HnswGraph.Search(dimensions);
+    } else {
+      d.selector = new CandidateSelector(projectionBits, projectionSamples);
+    }
+    if (sparseCenters == null) {
+      d.query = new double[dimensions];
+    }
+    return d;
+  }
+
   public Distances getDistances(Vector vec, boolean approx) {
-    int[] closestPoints = new int[pointsPerCenter.length];
-    double[] distances = new double[pointsPerCenter.length];
-    
+    return getDistances(vec, approx, newDistances());
+  }
+
+  /**
+   * Finds the closest center in each clustering to the given vector, overwriting and
+   * returning the given {@code Distances}.
+   */
+  public Distances getDistances(Vector vec, boolean approx, Distances out) {
+    double vecLengthSquared = vec.getLengthSquared();
+    double[] q = denseQuery(vec, out);
     if (approx) {
-      if (updated) {
-        buildIndices();
+      prepareApprox(vec, out);
+      for (int i = 0; i < pointsPerCenter.length; i++) {
+        closestApprox(vec, q, vecLengthSquared, i, out);
       }
-      
-      BitSet q = index(vec);
+    } else { // More expensive exact computation
+      prepareExact();
       for (int i = 0; i < pointsPerCenter.length; i++) {
-        List<BitSet> index = indices.get(i);
-        SortedSet<Idx> lookup = Sets.newTreeSet();
-        for (int j = 0; j < index.size(); j++) {
-          Idx idx = new Idx(hammingDistance(q, index.get(j)), j);
-          if (lookup.size() < projectionSamples) {
-            lookup.add(idx);
-          } else if (idx.compareTo(lookup.last()) < 0) {
-            lookup.add(idx);
-            lookup.remove(lookup.last());
+        closestExact(vec, q, vecLengthSquared, i, out);
+      }
+    }
+    return out;
+  }
+  
+  /**
+   * Returns true if exact lookups for a {@link VectorBlock} use the blocked kernel, i.e., the
+   * centers are stored densely and are not searched via ball trees, in order of their norms,
+   * or with early abandoning.
+   */
+  boolean hasBlockKernel() {
+    return sparseCenters == null && ballTreeLeafSize == 0 && !normPruning && !earlyAbandon;
+  }
+  
+  /**
+   * Finds the closest center in each clustering to every vector in the block, overwriting the
+   * block's {@code Distances}.
+   *
+   * <p>Exact lookups against dense centers compare the whole block to one tile of centers at a
+   * time, so each tile is read from memory once per block rather than once per vector. The
+   * distances of dense vectors are computed in the same order as
+   * {@link #getDistances(Vector, boolean, Distances)} and ties go to the lower center index, so
+   * the results are the same as looking up each vector on its own. The triangle inequality
+   * tests of the {@link CenterBounds} are applied to each vector of the block as in the single
+   * vector scan, and a vector stops visiting tiles once no other center can be closer than its
+   * current one. Other lookups are done one vector at a time.
+   */
+  public void getDistances(VectorBlock<?> block, boolean approx) {
+    if (approx || !hasBlockKernel()) {
+      for (int b = 0; b < block.size(); b++) {
+        getDistances(block.get(b), approx, block.distances(b));
+      }
+      return;
+    }
+    prepareExact();
+    double[] q = block.dense();
+    int tile = Math.max(1, CENTER_TILE_DOUBLES / Math.max(1, dimensions));
+    for (int i = 0; i < pointsPerCenter.length; i++) {
+      double[] p = points[i];
+      float[] fp = floatPoints == null ? null : floatPoints[i];
+      double[] lsq = lengthSquared[i];
+      CenterBounds bi = bounds == null ? null : bounds[i];
+      int n = pointsPerCenter[i];
+      for (int b = 0; b < block.size(); b++) {
+        block.distances(b).clusterDistances[i] = Double.POSITIVE_INFINITY;
+        block.distances(b).closestPoints[i] = 0;
+      }
+      for (int start = 0; start < n; start += tile) {
+        int end = Math.min(n, start + tile);
+        for (int b = 0; b < block.size(); b++) {
+          int qo = b * dimensions;
+          double qlsq = block.lengthSquared(b);
+          Distances out = block.distances(b);
+          double best = out.clusterDistances[i];
+          int closest = out.closestPoints[i];
+          double closestDistance = best == Double.POSITIVE_INFINITY ? best
+              : boundDistance(best, qlsq, lsq[closest]);
+          for (int j = start; j < end; j++) {
+            if (bi != null && j > 0) {
+              if (closestDistance <= bi.halfNearest(closest)) {
+                break; // No other center can be closer than the current one
+              }
+              if (bi.halfDistance(closest, j) >= closestDistance) {
+                continue;
+              }
+            }
+            double dot = fp == null ? KERNEL.dot(q, qo, p, j * dimensions, dimensions)
+                : KERNEL.dot(q, qo, fp, j * dimensions, dimensions);
+            double d = qlsq + lsq[j] - 2 * dot;
+            out.distancesComputed++;
+            if (d < best) {
+              best = d;
+              closest = j;
+              closestDistance = boundDistance(d, qlsq, lsq[j]);
+            }
           }
+          out.clusterDistances[i] = best;
+          out.closestPoints[i] = closest;
         }
-
-        List<double[]> p = points.get(i);
-        distances[i] = Double.POSITIVE_INFINITY;
-        for (Idx idx : lookup) {
-          double lenSq = lengthSquared.get(i).get(idx.index);
-          double d = vec.getLengthSquared() + lenSq - 2 * dot(vec, p.get(idx.index));
-          if (d < distances[i]) {
-            distances[i] = d;
-            closestPoints[i] = idx.index;
-          }
+      }
+    }
+  }
+  
+  /**
+   * Finds the closest center to the given vector in a single clustering, overwriting the
+   * entries for that clustering in the given {@code Distances} and leaving the others as they
+   * were. This is cheaper than {@link #getDistances(Vector, boolean, Distances)} when only one
+   * clustering is relevant to the vector, e.g., a cross-validation fold.
+   */
+  public Distances getDistance(Vector vec, int clusteringId, boolean approx, Distances out) {
+    double[] q = denseQuery(vec, out);
+    if (approx) {
+      prepareApprox(vec, out);
+      closestApprox(vec, q, vec.getLengthSquared(), clusteringId, out);
+    } else {
+      prepareExact();
+      closestExact(vec, q, vec.getLengthSquared(), clusteringId, out);
+    }
+    return out;
+  }
+  
+  /**
+   * Copies a dense query into the scratch space of the given {@code Distances} so that its
+   * distances to dense centers can be computed by the {@link DistanceKernel}, returning null
+   * if the query or the centers are sparse.
+   */
+  private double[] denseQuery(Vector vec, Distances out) {
+    if (sparseCenters != null || out.query == null || !vec.isDense()) {
+      return null;
+    }
+    double[] q = out.query;
+    for (int k = 0; k < dimensions; k++) {
+      q[k] = vec.getQuick(k);
+    }
+    return q;
+  }
+  
+  private void prepareApprox(Vector vec, Distances out) {
+    if (graphs != null) {
+      double[] q = out.search.getQuery();
+      if (vec.isDense()) {
+        for (int k = 0; k < dimensions; k++) {
+          q[k] = vec.getQuick(k);
+        }
+      } else {
+        Arrays.fill(q, 0.0);
+        Iterator<Vector.Element> iter = vec.iterateNonZero();
+        while (iter.hasNext()) {
+          Vector.Element e = iter.next();
+          q[e.index()] = e.get();
         }
       }
-    } else { // More expensive exact computation
-      for (int i = 0; i < pointsPerCenter.length; i++) {
-        distances[i] = Double.POSITIVE_INFINITY;
-        List<double[]> px = points.get(i);
-        List<Double> lsq = lengthSquared.get(i);
-        for (int j = 0; j < px.size(); j++) {
-          double[] p = px.get(j);
-          double lenSq = lsq.get(j);
-          double d = vec.getLengthSquared() + lenSq - 2 * dot(vec, p);
-          if (d < distances[i]) {
-            distances[i] = d;
-            closestPoints[i] = j;
-          }
+      out.search.setQueryLengthSquared(vec.getLengthSquared());
+      return;
+    }
+    if (!isIndexed()) {
+      updateIndices();
+    }
+    CandidateSelector selector = out.selector;
+    index(vec, selector.getProjection(), selector.getQuery(), 0);
+    if (numTables > 0) {
+      selector.computeProbes(numTables, projectionBits / numTables, numProbes);
+    }
+  }
+  
+  private void closestApprox(Vector vec, double[] q, double vecLengthSquared, int i, Distances out) {
+    if (graphs != null) {
+      if (graphs[i].size() < pointsPerCenter[i]) {
+        graphs[i].update(points[i], lengthSquared[i], pointsPerCenter[i]);
+      }
+      if (pointsPerCenter[i] == 0) {
+        out.clusterDistances[i] = Double.POSITIVE_INFINITY;
+        out.closestPoints[i] = 0;
+      } else {
+        out.closestPoints[i] = graphs[i].closest(efSearch, points[i], lengthSquared[i], out.search);
+        out.clusterDistances[i] = out.search.bestDistance;
+      }
+      return;
+    }
+    CandidateSelector selector = out.selector;
+    int numCandidates = 0;
+    if (numTables > 0) {
+      numCandidates = selector.select(tables[i], numTables);
+    }
+    if (numCandidates == 0) {
+      // Nothing shared a bucket with the query, so fall back to ranking every signature
+      numCandidates = selector.select(indices[i], pointsPerCenter[i]);
+      if (numTables > 0) {
+        out.fallbacks++;
+      }
+    }
+    double[] p = points[i];
+    double[] lsq = lengthSquared[i];
+    double best = Double.POSITIVE_INFINITY;
+    int closest = 0;
+    for (int c = 0; c < numCandidates; c++) {
+      int j = selector.get(c);
+      double d = vecLengthSquared + lsq[j] - 2 * dot(vec, q, i, p, j);
+      if (d < best) {
+        best = d;
+        closest = j;
+      }
+    }
+    out.clusterDistances[i] = best;
+    out.closestPoints[i] = closest;
+  }
+  
+  private void prepareExact() {
+    if (ballTreeLeafSize > 0) {
+      if (trees == null) {
+        buildTrees();
+      }
+    } else if (normPruning || earlyAbandon) {
+      if (normPruning && normOrder == null) {
+        buildNormOrder();
+      }
+      if (earlyAbandon && permutedPoints == null) {
+        buildPermutedPoints();
+      }
+    } else if (bounds == null) {
+      buildBounds();
+    }
+  }
+  
+  /**
+   * Returns an upper bound on the distance to a center whose squared distance was computed as
+   * {@code d} from the squared lengths of the vector and the center, allowing for the rounding
+   * errors of the cancellation in {@code |x|^2 + |c|^2 - 2 x.c}, so that the triangle
+   * inequality tests of the {@link CenterBounds} never prune a center that is nearly tied.
+   */
+  private static double boundDistance(double d, double vecLengthSquared,
+      double centerLengthSquared) {
+    return Math.sqrt(Math.max(d, 0.0)
+        + NORM_EPSILON * (Math.abs(d) + vecLengthSquared + centerLengthSquared));
+  }
+  
+  private void closestExact(Vector vec, double[] q, double vecLengthSquared, int i, Distances out) {
+    if (ballTreeLeafSize > 0 && pointsPerCenter[i] > 0) {
+      if (trees[i].size() != pointsPerCenter[i]) {
+        // Centers were added after the tree was built
+        trees[i] = new BallTree(points[i], pointsPerCenter[i], dimensions, ballTreeLeafSize);
+      }
+      out.closestPoints[i] = trees[i].closest(vec, q, vecLengthSquared, points[i],
+          lengthSquared[i], out.clusterDistances, i);
+      return;
+    }
+    double[] pq = earlyAbandon && q != null ? permute(q, out) : null;
+    if (normPruning) {
+      closestByNorm(vec, q, pq, vecLengthSquared, i, out);
+      return;
+    } else if (pq != null) {
+      closestAbandoning(pq, i, out);
+      return;
+    }
+    double[] p = points[i];
+    double[] lsq = lengthSquared[i];
+    CenterBounds b = bounds == null ? null : bounds[i];
+    double best = Double.POSITIVE_INFINITY;
+    int closest = 0;
+    double closestDistance = Double.POSITIVE_INFINITY;
+    for (int j = 0; j < pointsPerCenter[i]; j++) {
+      if (b != null && j > 0) {
+        if (closestDistance <= b.halfNearest(closest)) {
+          break; // No other center can be closer than the current one
+        }
+        if (b.halfDistance(closest, j) >= closestDistance) {
+          continue;
         }
       }
+      double d = vecLengthSquared + lsq[j] - 2 * dot(vec, q, i, p, j);
+      out.distancesComputed++;
+      if (d < best) {
+        best = d;
+        closest = j;
+        closestDistance = boundDistance(d, vecLengthSquared, lsq[j]);
+      }
     }
-    
-    return new Distances(distances, closestPoints);
+    out.clusterDistances[i] = best;
+    out.closestPoints[i] = closest;
   }
   
-  static class Idx implements Comparable<Idx> {
-    private final int distance;
-    private final int index;
-    
-    Idx(int distance, int index) {
-      this.distance = distance;
-      this.index = index;
+  private void closestByNorm(Vector vec, double[] q, double[] pq, double vecLengthSquared, int i,
+      Distances out) {
+    double[] p = points[i];
+    double[] lsq = lengthSquared[i];
+    int[] order = normOrder[i];
+    double[] norms = sortedNorms[i];
+    int n = order.length;
+    double norm = Math.sqrt(vecLengthSquared);
+    double maxNormSquared = n == 0 ? 0.0 : norms[n - 1] * norms[n - 1];
+    int hi = Arrays.binarySearch(norms, norm);
+    if (hi < 0) {
+      hi = -hi - 1;
     }
-
-    @Override
-    public int compareTo(Idx idx) {
-      if (distance < idx.distance) {
-        return -1;
+    int lo = hi - 1;
+    double best = Double.POSITIVE_INFINITY;
+    int closest = 0;
+    while (lo >= 0 || hi < n) {
+      // Visit whichever side is closer in norm, so the gap only grows as the scan goes on
+      int k = (hi >= n || (lo >= 0 && norm - norms[lo] <= norms[hi] - norm)) ? lo-- : hi++;
+      double gap = norms[k] - norm;
+      if (gap * gap > best + NORM_EPSILON * (best + vecLengthSquared + maxNormSquared)) {
+        break;
       }
-      if (distance > idx.distance) {
-        return 1;
+      int j = order[k];
+      double d;
+      if (pq != null) {
+        d = abandoningDistance(pq, permutedPoints[i], j * dimensions, best);
+      } else {
+        d = vecLengthSquared + lsq[j] - 2 * dot(vec, q, i, p, j);
+      }
+      if (d < best || (d == best && j < closest)) {
+        best = d;
+        closest = j;
       }
-      return 0;
     }
-    
-    @Override
-    public boolean equals(Object o) {
-      if (!(o instanceof Idx)) {
-        return false;
+    out.clusterDistances[i] = best;
+    out.closestPoints[i] = closest;
+  }
+  
+  private void closestAbandoning(double[] pq, int i, Distances out) {
+    double[] pp = permutedPoints[i];
+    double best = Double.POSITIVE_INFINITY;
+    int closest = 0;
+    for (int j = 0; j < pointsPerCenter[i]; j++) {
+      double d = abandoningDistance(pq, pp, j * dimensions, best);
+      if (d < best) {
+        best = d;
+        closest = j;
       }
-      Idx other = (Idx) o;
-      return distance == other.distance && index == other.index;
     }
-    
-    @Override
-    public int hashCode() {
-      return distance ^ index;
+    out.clusterDistances[i] = best;
+    out.closestPoints[i] = closest;
+  }
+  
+  /**
+   * Returns the squared distance between the permuted query and the permuted center at the
+   * given offset, or a partial sum that is already greater than {@code best}.
+   */
+  private double abandoningDistance(double[] pq, double[] pp, int offset, double best) {
+    double sum = 0.0;
+    for (int k = 0; k < dimensions; k += ABANDON_CHUNK) {
+      int len = Math.min(ABANDON_CHUNK, dimensions - k);
+      sum += KERNEL.distanceSquared(pq, k, pp, offset + k, len);
+      if (sum > best) {
+        break;
+      }
+    }
+    return sum;
+  }
+  
+  private double[] permute(double[] q, Distances out) {
+    if (out.permutedQuery == null) {
+      out.permutedQuery = new double[dimensions];
+    }
+    double[] pq = out.permutedQuery;
+    for (int k = 0; k < dimensions; k++) {
+      pq[k] = q[dimensionOrder[k]];
+    }
+    return pq;
+  }
+  
+  private void buildPermutedPoints() {
+    // The variance of each dimension over the centers of every clustering
+    final double[] variance = new double[dimensions];
+    double[] mean = new double[dimensions];
+    long count = 0;
+    for (int i = 0; i < points.length; i++) {
+      for (int j = 0; j < pointsPerCenter[i]; j++) {
+        count++;
+        for (int k = 0; k < dimensions; k++) {
+          double delta = coordinate(i, j, k) - mean[k];
+          mean[k] += delta / count;
+          variance[k] += delta * (coordinate(i, j, k) - mean[k]);
+        }
+      }
+    }
+    Integer[] dims = new Integer[dimensions];
+    for (int k = 0; k < dimensions; k++) {
+      dims[k] = k;
+    }
+    Arrays.sort(dims, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        int c = Double.compare(variance[b], variance[a]);
+        return c != 0 ? c : a.compareTo(b);
+      }
+    });
+    int[] order = new int[dimensions];
+    for (int k = 0; k < dimensions; k++) {
+      order[k] = dims[k];
+    }
+    double[][] pp = new double[points.length][];
+    for (int i = 0; i < points.length; i++) {
+      pp[i] = new double[pointsPerCenter[i] * dimensions];
+      for (int j = 0; j < pointsPerCenter[i]; j++) {
+        for (int k = 0; k < dimensions; k++) {
+          pp[i][j * dimensions + k] = coordinate(i, j, order[k]);
+        }
+      }
+    }
+    this.dimensionOrder = order;
+    this.permutedPoints = pp;
+  }
+  
+  private double coordinate(int i, int j, int k) {
+    if (floatPoints != null) {
+      return floatPoints[i][j * dimensions + k];
+    }
+    return points[i][j * dimensions + k];
+  }
+  
+  private void buildNormOrder() {
+    int[][] o = new int[points.length][];
+    double[][] sn = new double[points.length][];
+    for (int i = 0; i < points.length; i++) {
+      final double[] lsq = lengthSquared[i];
+      Integer[] ids = new Integer[pointsPerCenter[i]];
+      for (int j = 0; j < ids.length; j++) {
+        ids[j] = j;
+      }
+      Arrays.sort(ids, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          int c = Double.compare(lsq[a], lsq[b]);
+          return c != 0 ? c : a.compareTo(b);
+        }
+      });
+      o[i] = new int[ids.length];
+      sn[i] = new double[ids.length];
+      for (int k = 0; k < ids.length; k++) {
+        o[i][k] = ids[k];
+        sn[i][k] = Math.sqrt(lsq[ids[k]]);
+      }
+    }
+    this.sortedNorms = sn;
+    this.normOrder = o;
+  }
+  
+  private void buildTrees() {
+    BallTree[] t = new BallTree[points.length];
+    for (int i = 0; i < points.length; i++) {
+      t[i] = new BallTree(points[i], pointsPerCenter[i], dimensions, ballTreeLeafSize);
     }
+    this.trees = t;
   }
   
-  private static int hammingDistance(BitSet q, BitSet idx) {
-    BitSet x = new BitSet(q.size());
-    x.or(q);
-    x.xor(idx);
-    return x.cardinality();
+  private void buildBounds() {
+    CenterBounds[] b = new CenterBounds[points.length];
+    for (int i = 0; i < points.length; i++) {
+      if (sparseCenters == null && pointsPerCenter[i] > 1
+          && pointsPerCenter[i] <= MAX_PRUNED_CENTERS) {
+        double[] p = points[i];
+        if (floatPoints != null) {
+          p = new double[pointsPerCenter[i] * dimensions];
+          for (int k = 0; k < p.length; k++) {
+            p[k] = floatPoints[i][k];
+          }
+        }
+        b[i] = new CenterBounds(p, pointsPerCenter[i], dimensions);
+      }
+    }
+    this.bounds = b;
   }
   
-  private static double dot(Vector vec, double[] p) {
+  /**
+   * Returns the dot product of the given vector with center {@code j} of clustering
+   * {@code i}, whose dense coordinates (if any) are in {@code p}. The dense copy of the
+   * vector, if there is one, is in {@code q}.
+   */
+  private double dot(Vector vec, double[] q, int i, double[] p, int j) {
+    if (sparseCenters != null) {
+      return sparseCenters[i].dot(vec, j);
+    } else if (floatPoints != null) {
+      float[] fp = floatPoints[i];
+      return q != null ? KERNEL.dot(q, 0, fp, j * dimensions, dimensions)
+          : dot(vec, fp, j * dimensions);
+    } else if (q != null) {
+      return KERNEL.dot(q, 0, p, j * dimensions, dimensions);
+    }
+    return dot(vec, p, j * dimensions);
+  }
+  
+  private static double dot(Vector vec, float[] p, int offset) {
+    double dot = 0;
+    Iterator<Vector.Element> iter = vec.iterateNonZero();
+    while (iter.hasNext()) {
+      Vector.Element e = iter.next();
+      dot += e.get() * p[offset + e.index()];
+    }
+    return dot;
+  }
+  
+  static double dot(Vector vec, double[] p, int offset) {
     double dot = 0;
     if (vec.isDense()) {
-      for (int i = 0; i < p.length; i++) {
-        dot += vec.getQuick(i) * p[i];
+      int n = vec.size();
+      for (int i = 0; i < n; i++) {
+        dot += vec.getQuick(i) * p[offset + i];
       }
     } else {
       Iterator<Vector.Element> iter = vec.iterateNonZero();
       while (iter.hasNext()) {
         Vector.Element e = iter.next();
-        dot += e.get() * p[e.index()];
+        dot += e.get() * p[offset + e.index()];
       }
     }
     return dot;
@@ -268,14 +1120,196 @@ class CentersIndex implements Serializable {
     List<List<Weighted<Vector>>> ret = Lists.newArrayList();
     for (int i = 0; i < pointCounts.size(); i++) {
       List<Long> counts = pointCounts.get(i);
-      List<double[]> p = points.get(i);
       List<Weighted<Vector>> weighted = Lists.newArrayList();
       for (int j = 0; j < counts.size(); j++) {
-        weighted.add(new Weighted<Vector>(Vectors.of(p.get(j)), counts.get(j)));
+        weighted.add(new Weighted<Vector>(getPoint(i, j), counts.get(j)));
       }
       ret.add(weighted);
     }
     return ret;
   }
   
+  /**
+   * Returns copies of the points that have been added for the given clustering.
+   */
+  public List<Vector> getPoints(int centerId) {
+    List<Vector> ret = Lists.newArrayListWithCapacity(pointsPerCenter[centerId]);
+    for (int j = 0; j < pointsPerCenter[centerId]; j++) {
+      ret.add(getPoint(centerId, j));
+    }
+    return ret;
+  }
+  
+  private Vector getPoint(int centerId, int index) {
+    if (sparseCenters != null) {
+      return sparseCenters[centerId].get(index, dimensions);
+    }
+    int offset = index * dimensions;
+    if (floatPoints != null) {
+      double[] v = new double[dimensions];
+      for (int i = 0; i < dimensions; i++) {
+        v[i] = floatPoints[centerId][offset + i];
+      }
+      return Vectors.of(v);
+    }
+    return Vectors.of(Arrays.copyOfRange(points[centerId], offset, offset + dimensions));
+  }
+  
+  /**
+   * Writes the index in a compact binary form: the parameters, followed by the centers,
+   * lengths and signatures of each clustering that are in use, without the spare capacity of
+   * the arrays that they are stored in. The ball trees and HNSW graphs, if any, are appended
+   * as serialized objects.
+   */
+  void write(DataOutputStream out) throws IOException {
+    out.writeInt(FORMAT_VERSION);
+    out.writeInt(pointsPerCenter.length);
+    out.writeInt(dimensions);
+    out.writeInt(projectionBits);
+    out.writeInt(projectionSamples);
+    out.writeInt(numTables);
+    out.writeInt(numProbes);
+    out.writeLong(seed);
+    out.writeInt(ballTreeLeafSize);
+    out.writeInt(efSearch);
+    out.writeBoolean(normPruning);
+    out.writeBoolean(earlyAbandon);
+    out.writeByte(sparseCenters != null ? SPARSE : floatPoints != null ? FLOAT : DENSE);
+    for (int i = 0; i < pointsPerCenter.length; i++) {
+      int n = pointsPerCenter[i];
+      out.writeInt(n);
+      out.writeInt(indexedPoints[i]);
+      for (int j = 0; j < n; j++) {
+        out.writeDouble(lengthSquared[i][j]);
+      }
+      for (int k = 0; k < indexedPoints[i] * signatureWords; k++) {
+        out.writeLong(indices[i][k]);
+      }
+      if (sparseCenters != null) {
+        sparseCenters[i].write(out);
+      } else if (floatPoints != null) {
+        for (int k = 0; k < n * dimensions; k++) {
+          out.writeFloat(floatPoints[i][k]);
+        }
+      } else {
+        for (int k = 0; k < n * dimensions; k++) {
+          out.writeDouble(points[i][k]);
+        }
+      }
+    }
+    ObjectOutputStream oos = new ObjectOutputStream(out);
+    oos.writeObject(trees);
+    oos.writeObject(graphs);
+    oos.flush();
+  }
+  
+  /**
+   * Reads an index that was written by {@link #write(DataOutputStream)}.
+   */
+  static CentersIndex read(DataInputStream in) throws IOException {
+    int version = in.readInt();
+    if (version != FORMAT_VERSION) {
+      throw new IOException("Unsupported centers index format version: " + version);
+    }
+    int numClusterings = in.readInt();
+    int dims = in.readInt();
+    CentersIndex index = new CentersIndex(numClusterings, dims, in.readInt(), in.readInt(),
+        in.readInt(), in.readInt(), in.readLong());
+    index.ballTreeLeafSize = in.readInt();
+    index.efSearch = in.readInt();
+    index.normPruning = in.readBoolean();
+    index.earlyAbandon = in.readBoolean();
+    byte storage = in.readByte();
+    if (storage == SPARSE) {
+      index.sparseCenters = new SparseCenters[numClusterings];
+    } else if (storage == FLOAT) {
+      index.floatPoints = new float[numClusterings][];
+    }
+    for (int i = 0; i < numClusterings; i++) {
+      int n = in.readInt();
+      index.pointsPerCenter[i] = n;
+      index.indexedPoints[i] = in.readInt();
+      index.lengthSquared[i] = new double[n];
+      for (int j = 0; j < n; j++) {
+        index.lengthSquared[i][j] = in.readDouble();
+      }
+      index.indices[i] = new long[index.indexedPoints[i] * index.signatureWords];
+      for (int k = 0; k < index.indices[i].length; k++) {
+        index.indices[i][k] = in.readLong();
+      }
+      if (storage == SPARSE) {
+        index.sparseCenters[i] = SparseCenters.read(in);
+      } else if (storage == FLOAT) {
+        index.floatPoints[i] = new float[n * dims];
+        for (int k = 0; k < n * dims; k++) {
+          index.floatPoints[i][k] = in.readFloat();
+        }
+      } else {
+        index.points[i] = new double[n * dims];
+        for (int k = 0; k < n * dims; k++) {
+          index.points[i][k] = in.readDouble();
+        }
+      }
+    }
+    ObjectInputStream ois = new ObjectInputStream(in);
+    try {
+      index.trees = (BallTree[]) ois.readObject();
+      index.graphs = (HnswGraph[]) ois.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+    return index;
+  }
+  
+  private Object writeReplace() throws ObjectStreamException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try {
+      DataOutputStream out = new DataOutputStream(baos);
+      write(out);
+      out.flush();
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not write centers index", e);
+    }
+    return new CompactForm(baos.toByteArray());
+  }
+  
+  /**
+   * The serialized form of a {@code CentersIndex}, which is resolved to the shared instance
+   * for its content hash when it is deserialized.
+   *
+   * <p>The form is still shipped inside the serialized {@code DoFn} rather than as a file of
+   * its own in the distributed cache, since Crunch already writes the serialized plan of each
+   * job to the distributed cache instead of the job configuration. The shared instance is an
+   * ordinary heap copy, not a memory-mapped file; a reused JVM only deserializes it once.
+   */
+  private static class CompactForm implements Serializable {
+    private final String hash;
+    private final byte[] data;
+    
+    CompactForm(byte[] data) {
+      this.hash = Hashing.sha1().hashBytes(data).toString();
+      this.data = data;
+    }
+    
+    private Object readResolve() throws ObjectStreamException {
+      try {
+        return SHARED.get(hash, new Callable<CentersIndex>() {
+          @Override
+          public CentersIndex call() throws IOException {
+            CentersIndex index = read(new DataInputStream(new ByteArrayInputStream(data)));
+            // Build everything that lookups would otherwise build lazily, since the shared
+            // instance is read concurrently and must not change once it is published
+            index.updateIndices();
+            index.prepareExact();
+            index.shared = true;
+            return index;
+          }
+        });
+      } catch (ExecutionException e) {
+        InvalidObjectException ioe = new InvalidObjectException("Could not read centers index");
+        ioe.initCause(e.getCause());
+        throw ioe;
+      }
+    }
+  }
 }
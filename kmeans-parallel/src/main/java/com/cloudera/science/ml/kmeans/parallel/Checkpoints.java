@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.avro.specific.SpecificRecord;
+import org.apache.crunch.CrunchRuntimeException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Reads and writes the single-record Avro files that {@link KMeansParallel} uses to checkpoint
+ * its driver-side state after each iteration, on any filesystem that Hadoop supports. A new
+ * checkpoint is written next to the old one and then renamed over it, so a failure while
+ * writing leaves the previous checkpoint intact.
+ */
+final class Checkpoints {
+
+  /**
+   * Returns the record stored at the given path, or null if there is no checkpoint there.
+   */
+  static <T extends SpecificRecord> T read(Class<T> clazz, String path, Configuration conf) {
+    Path p = new Path(path);
+    try {
+      FileSystem fs = p.getFileSystem(conf);
+      if (!fs.exists(p)) {
+        return null;
+      }
+      InputStream in = fs.open(p);
+      try {
+        DataFileStream<T> dfs = new DataFileStream<T>(in, new SpecificDatumReader<T>(clazz));
+        return dfs.hasNext() ? dfs.next() : null;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      throw new CrunchRuntimeException(e);
+    }
+  }
+
+  /**
+   * Replaces the checkpoint at the given path with the given record.
+   */
+  @SuppressWarnings("unchecked")
+  static <T extends SpecificRecord> void write(T record, String path, Configuration conf) {
+    Path p = new Path(path);
+    Path tmp = new Path(p.getParent(), "." + p.getName() + ".tmp");
+    try {
+      FileSystem fs = p.getFileSystem(conf);
+      OutputStream out = fs.create(tmp, true);
+      try {
+        DataFileWriter<T> dfw = new DataFileWriter<T>(
+            new SpecificDatumWriter<T>((Class<T>) record.getClass()));
+        dfw.create(record.getSchema(), out);
+        dfw.append(record);
+        dfw.close();
+      } finally {
+        out.close();
+      }
+      if (fs.exists(p)) {
+        fs.delete(p, false);
+      }
+      if (!fs.rename(tmp, p)) {
+        throw new IOException("Could not move " + tmp + " to " + p);
+      }
+    } catch (IOException e) {
+      throw new CrunchRuntimeException(e);
+    }
+  }
+
+  /**
+   * Removes the checkpoint at the given path, if there is one.
+   */
+  static void delete(String path, Configuration conf) {
+    Path p = new Path(path);
+    try {
+      p.getFileSystem(conf).delete(p, false);
+    } catch (IOException e) {
+      throw new CrunchRuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the serialized state of the given {@code Random}, so that a resumed run draws the
+   * same sequence of numbers that the original run would have.
+   */
+  static ByteBuffer toBytes(Random random) {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try {
+      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      oos.writeObject(random);
+      oos.close();
+    } catch (IOException e) {
+      throw new CrunchRuntimeException(e);
+    }
+    return ByteBuffer.wrap(baos.toByteArray());
+  }
+
+  static Random toRandom(ByteBuffer bytes) {
+    ByteArrayInputStream bais = new ByteArrayInputStream(bytes.array(),
+        bytes.arrayOffset() + bytes.position(), bytes.remaining());
+    try {
+      return (Random) new ObjectInputStream(bais).readObject();
+    } catch (IOException e) {
+      throw new CrunchRuntimeException(e);
+    } catch (ClassNotFoundException e) {
+      throw new CrunchRuntimeException(e);
+    }
+  }
+
+  private Checkpoints() { }
+}
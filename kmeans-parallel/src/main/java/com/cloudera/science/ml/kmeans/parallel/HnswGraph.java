@@ -0,0 +1,370 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.cloudera.science.ml.core.vectors.DistanceKernel;
+
+/**
+ * A hierarchical navigable small world graph over the centers of a single clustering, as in
+ * Malkov and Yashunin (2016), for approximate closest-center lookups in {@link CentersIndex}
+ * when there are far too many centers to scan.
+ *
+ * <p>Each center is assigned a random top layer with exponentially decaying probability and is
+ * linked to (at most) {@code m} of its closest centers on each layer up to that one, and to
+ * {@code 2 * m} on the bottom layer. A lookup descends greedily from the entry point through
+ * the upper layers and then runs a best-first search on the bottom layer that keeps the
+ * {@code efSearch} closest centers it has seen, so larger values of {@code efSearch} trade speed
+ * for recall. The graph is built on the client and serialized with the index; the scratch space
+ * for lookups lives in a {@link Search} that each {@code DoFn} reuses.
+ */
+class HnswGraph implements Serializable {
+  private static final int[] EMPTY = new int[1];
+  private static final DistanceKernel KERNEL = DistanceKernel.get();
+
+  private final int dimensions;
+  private final int m;
+  private final int efConstruction;
+  private final double levelMultiplier;
+  private final Random random;
+  private int size;
+  private int entryPoint = -1;
+  private int maxLevel = -1;
+  // neighbors[j][l][0] is the number of neighbors of center j on layer l, followed by their ids
+  private int[][][] neighbors = new int[0][][];
+
+  HnswGraph(int dimensions, int m, int efConstruction, long seed) {
+    this.dimensions = dimensions;
+    this.m = Math.max(2, m);
+    this.efConstruction = Math.max(this.m, efConstruction);
+    this.levelMultiplier = 1.0 / Math.log(this.m);
+    this.random = new Random(seed);
+  }
+
+  /**
+   * Returns the number of centers that have been added to the graph.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Links the centers from {@link #size()} up to (but not including) {@code numPoints} into
+   * the graph.
+   */
+  void update(double[] points, double[] lengthSquared, int numPoints) {
+    if (numPoints <= size) {
+      return;
+    }
+    if (neighbors.length < numPoints) {
+      neighbors = Arrays.copyOf(neighbors, Math.max(numPoints, 2 * neighbors.length));
+    }
+    Search search = new Search(dimensions);
+    for (int j = size; j < numPoints; j++) {
+      insert(j, points, lengthSquared, search);
+      size = j + 1;
+    }
+  }
+
+  private void insert(int node, double[] points, double[] lengthSquared, Search search) {
+    int level = (int) (-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+    neighbors[node] = new int[level + 1][];
+    for (int l = 0; l <= level; l++) {
+      neighbors[node][l] = new int[1 + maxNeighbors(l) + 1];
+    }
+    if (entryPoint < 0) {
+      entryPoint = node;
+      maxLevel = level;
+      return;
+    }
+
+    search.setQuery(points, node * dimensions, lengthSquared[node]);
+    int ep = entryPoint;
+    for (int l = maxLevel; l > level; l--) {
+      ep = greedy(ep, l, points, lengthSquared, search);
+    }
+    for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+      searchLayer(ep, efConstruction, l, points, lengthSquared, search);
+      int[] found = search.sortedResults();
+      int numLinks = Math.min(m, found.length);
+      for (int i = 0; i < numLinks; i++) {
+        link(node, found[i], l, points, lengthSquared);
+        link(found[i], node, l, points, lengthSquared);
+      }
+      ep = found[0];
+    }
+    if (level > maxLevel) {
+      maxLevel = level;
+      entryPoint = node;
+    }
+  }
+
+  private int maxNeighbors(int level) {
+    return level == 0 ? 2 * m : m;
+  }
+
+  /**
+   * Adds {@code to} to the neighbors of {@code from} on the given layer, dropping the farthest
+   * neighbor of {@code from} if it already has as many as it is allowed.
+   */
+  private void link(int from, int to, int level, double[] points, double[] lengthSquared) {
+    int[] links = neighbors[from][level];
+    int count = links[0];
+    links[++count] = to;
+    if (count > maxNeighbors(level)) {
+      int farthest = 1;
+      double farthestDistance = -1.0;
+      for (int i = 1; i <= count; i++) {
+        double d = distance(points, from, links[i], lengthSquared);
+        if (d > farthestDistance) {
+          farthestDistance = d;
+          farthest = i;
+        }
+      }
+      links[farthest] = links[count];
+      count--;
+    }
+    links[0] = count;
+  }
+
+  private double distance(double[] points, int a, int b, double[] lengthSquared) {
+    double dot = KERNEL.dot(points, a * dimensions, points, b * dimensions, dimensions);
+    return lengthSquared[a] + lengthSquared[b] - 2 * dot;
+  }
+
+  private int[] links(int node, int level) {
+    int[][] n = neighbors[node];
+    return level < n.length ? n[level] : EMPTY;
+  }
+
+  private int greedy(int ep, int level, double[] points, double[] lengthSquared, Search search) {
+    int current = ep;
+    double currentDistance = search.distance(current, points, lengthSquared, dimensions);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      int[] links = links(current, level);
+      for (int i = 1; i <= links[0]; i++) {
+        double d = search.distance(links[i], points, lengthSquared, dimensions);
+        if (d < currentDistance) {
+          currentDistance = d;
+          current = links[i];
+          changed = true;
+        }
+      }
+    }
+    return current;
+  }
+
+  private void searchLayer(int ep, int ef, int level, double[] points, double[] lengthSquared,
+      Search search) {
+    search.reset(size + 1);
+    double d = search.distance(ep, points, lengthSquared, dimensions);
+    search.visit(ep);
+    search.candidates.push(ep, d);
+    search.results.push(ep, d);
+    while (search.candidates.size > 0) {
+      double cd = search.candidates.topKey();
+      if (cd > search.results.topKey() && search.results.size >= ef) {
+        break;
+      }
+      int c = search.candidates.pop();
+      int[] links = links(c, level);
+      for (int i = 1; i <= links[0]; i++) {
+        int n = links[i];
+        if (search.visit(n)) {
+          double nd = search.distance(n, points, lengthSquared, dimensions);
+          if (search.results.size < ef || nd < search.results.topKey()) {
+            search.candidates.push(n, nd);
+            search.results.push(n, nd);
+            if (search.results.size > ef) {
+              search.results.pop();
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds (approximately) the closest center to the query that was set on the given
+   * {@code Search}.
+   *
+   * @param efSearch The number of closest centers to keep track of on the bottom layer
+   * @return The index of the closest center that was found, with its squared distance in
+   *     {@link Search#bestDistance}
+   */
+  int closest(int efSearch, double[] points, double[] lengthSquared, Search search) {
+    int ep = entryPoint;
+    for (int l = maxLevel; l > 0; l--) {
+      ep = greedy(ep, l, points, lengthSquared, search);
+    }
+    searchLayer(ep, Math.max(1, efSearch), 0, points, lengthSquared, search);
+    int best = -1;
+    double bestDistance = Double.POSITIVE_INFINITY;
+    while (search.results.size > 0) {
+      double d = search.results.topKey();
+      int c = search.results.pop();
+      if (d < bestDistance || (d == bestDistance && c < best)) {
+        bestDistance = d;
+        best = c;
+      }
+    }
+    search.bestDistance = bestDistance;
+    return best;
+  }
+
+  /**
+   * The reusable scratch space for building and searching a graph: the dense query, the
+   * visited set, and the candidate and result heaps.
+   */
+  static class Search {
+    private double[] query;
+    private double queryLengthSquared;
+    private int[] visited = new int[0];
+    private int stamp;
+    private final Heap candidates = new Heap(false);
+    private final Heap results = new Heap(true);
+    double bestDistance;
+
+    Search(int dimensions) {
+      this.query = new double[dimensions];
+    }
+
+    /**
+     * Returns the buffer that the dense query should be written to before calling
+     * {@link #setQueryLengthSquared(double)}.
+     */
+    double[] getQuery() {
+      return query;
+    }
+
+    void setQueryLengthSquared(double queryLengthSquared) {
+      this.queryLengthSquared = queryLengthSquared;
+    }
+
+    void setQuery(double[] points, int offset, double lengthSquared) {
+      System.arraycopy(points, offset, query, 0, query.length);
+      this.queryLengthSquared = lengthSquared;
+    }
+
+    double distance(int center, double[] points, double[] lengthSquared, int dimensions) {
+      double dot = KERNEL.dot(query, 0, points, center * dimensions, dimensions);
+      return queryLengthSquared + lengthSquared[center] - 2 * dot;
+    }
+
+    void reset(int numCenters) {
+      if (visited.length < numCenters) {
+        visited = new int[Math.max(numCenters, 2 * visited.length)];
+      }
+      if (++stamp == Integer.MAX_VALUE) {
+        Arrays.fill(visited, 0);
+        stamp = 1;
+      }
+      candidates.size = 0;
+      results.size = 0;
+    }
+
+    /**
+     * Marks the center as visited, returning false if it already was.
+     */
+    boolean visit(int center) {
+      if (visited[center] == stamp) {
+        return false;
+      }
+      visited[center] = stamp;
+      return true;
+    }
+
+    int[] sortedResults() {
+      int[] ret = new int[results.size];
+      for (int i = ret.length - 1; i >= 0; i--) {
+        ret[i] = results.pop();
+      }
+      return ret;
+    }
+  }
+
+  /**
+   * A binary heap of center ids keyed by their distances, with the largest distance on top
+   * if {@code max} is set and the smallest otherwise.
+   */
+  private static class Heap {
+    private final boolean max;
+    private double[] keys = new double[16];
+    private int[] values = new int[16];
+    private int size;
+
+    Heap(boolean max) {
+      this.max = max;
+    }
+
+    private boolean above(double a, double b) {
+      return max ? a > b : a < b;
+    }
+
+    double topKey() {
+      return keys[0];
+    }
+
+    void push(int value, double key) {
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, 2 * size);
+        values = Arrays.copyOf(values, 2 * size);
+      }
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (!above(key, keys[parent])) {
+          break;
+        }
+        keys[i] = keys[parent];
+        values[i] = values[parent];
+        i = parent;
+      }
+      keys[i] = key;
+      values[i] = value;
+    }
+
+    int pop() {
+      int top = values[0];
+      size--;
+      double key = keys[size];
+      int value = values[size];
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && above(keys[child + 1], keys[child])) {
+          child++;
+        }
+        if (!above(keys[child], key)) {
+          break;
+        }
+        keys[i] = keys[child];
+        values[i] = values[child];
+        i = child;
+      }
+      keys[i] = key;
+      values[i] = value;
+      return top;
+    }
+  }
+}
@@ -20,11 +20,15 @@ import static org.apache.crunch.types.avro.Avros.pairs;
 import static org.apache.crunch.types.avro.Avros.tableOf;
 
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
+import com.cloudera.science.ml.avro.MLCenters;
 import com.cloudera.science.ml.avro.MLClusterCovariance;
+import com.cloudera.science.ml.avro.MLInitializationCheckpoint;
+import com.cloudera.science.ml.avro.MLLloydsCheckpoint;
 import com.cloudera.science.ml.avro.MLMatrixEntry;
 import com.cloudera.science.ml.parallel.covariance.CoMoment;
 import com.cloudera.science.ml.parallel.covariance.Covariance;
@@ -32,22 +36,24 @@ import com.cloudera.science.ml.parallel.covariance.Index;
 import com.cloudera.science.ml.parallel.covariance.MahalanobisDistance;
 import com.cloudera.science.ml.parallel.types.MLAvros;
 import com.google.common.collect.Maps;
+import com.google.common.primitives.Doubles;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.crunch.Aggregator;
 import org.apache.crunch.DoFn;
 import org.apache.crunch.Emitter;
+import org.apache.crunch.FilterFn;
 import org.apache.crunch.MapFn;
 import org.apache.crunch.PCollection;
 import org.apache.crunch.PObject;
 import org.apache.crunch.PTable;
 import org.apache.crunch.Pair;
 import org.apache.crunch.fn.Aggregators;
+import org.apache.crunch.fn.IdentityFn;
 import org.apache.crunch.materialize.pobject.PObjectImpl;
 import org.apache.crunch.types.PTableType;
-import org.apache.crunch.types.PType;
-import org.apache.crunch.types.PTypeFamily;
 import org.apache.crunch.types.avro.Avros;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 import org.apache.mahout.math.NamedVector;
 import org.apache.mahout.math.Vector;
 
@@ -58,6 +64,7 @@ import com.cloudera.science.ml.core.records.SimpleRecord;
 import com.cloudera.science.ml.core.records.Spec;
 import com.cloudera.science.ml.core.vectors.Centers;
 import com.cloudera.science.ml.core.vectors.VectorConvert;
+import com.cloudera.science.ml.core.vectors.Vectors;
 import com.cloudera.science.ml.core.vectors.Weighted;
 import com.cloudera.science.ml.kmeans.parallel.CentersIndex.Distances;
 import com.cloudera.science.ml.parallel.crossfold.Crossfold;
@@ -68,6 +75,7 @@ import com.cloudera.science.ml.parallel.records.Records;
 import com.cloudera.science.ml.parallel.sample.ReservoirSampling;
 import com.cloudera.science.ml.parallel.types.MLRecords;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
 /**
@@ -100,11 +108,282 @@ public class KMeansParallel {
 
   private final int projectionBits;
   private final int projectionSamples;
+  private final int numTables;
+  private final int numProbes;
+  private final boolean fusedWeighting;
+  private final boolean bernoulliSampling;
+  private final int maxCandidates;
+  private final int ballTreeLeafSize;
+  private final int hnswM;
+  private final int hnswEfConstruction;
+  private final int hnswEfSearch;
+  private final boolean sparse;
+  private final boolean singlePrecision;
+  private final boolean normPruning;
+  private final boolean earlyAbandon;
+  private final boolean cacheFolds;
+  private final String checkpointPath;
+  private final boolean fusedCovariance;
   private final long seed;
   private final Random random;
   
+  public static Builder builder() {
+    return new Builder();
+  }
+  
+  /**
+   * Configures the options for running k-means|| and Lloyd's algorithm.
+   */
+  public static class Builder {
+    private Random random;
+    private int projectionBits = 128;
+    private int projectionSamples = 32;
+    private int numTables = 0;
+    private int numProbes = 2;
+    private boolean fusedWeighting = false;
+    private boolean bernoulliSampling = false;
+    private int maxCandidates = 0;
+    private int ballTreeLeafSize = 0;
+    private int hnswM = 0;
+    private int hnswEfConstruction = 100;
+    private int hnswEfSearch = 50;
+    private boolean sparse = false;
+    private boolean singlePrecision = false;
+    private boolean normPruning = false;
+    private boolean earlyAbandon = false;
+    private boolean cacheFolds = false;
+    private String checkpointPath;
+    private boolean fusedCovariance = false;
+    
+    /**
+     * A fixed {@code Random} instance to use for running the k-means algorithm for testing
+     * purposes.
+     */
+    public Builder random(Random random) {
+      this.random = random;
+      return this;
+    }
+    
+    /**
+     * The number of bits in the random projection signatures that are used for approximate
+     * center assignments.
+     */
+    public Builder projectionBits(int projectionBits) {
+      this.projectionBits = projectionBits;
+      return this;
+    }
+    
+    /**
+     * The number of centers with the closest signatures that each point is compared to
+     * during approximate center assignments. With {@code numTables}, this bounds the number of
+     * centers from the probed buckets that each point is compared to.
+     */
+    public Builder projectionSamples(int projectionSamples) {
+      this.projectionSamples = projectionSamples;
+      return this;
+    }
+    
+    /**
+     * Split the {@code projectionBits} evenly across this many hash tables and only compare each
+     * point to the centers that share a bucket with it in some table during approximate center
+     * assignments. The number of tables must divide the number of projection bits. A point
+     * whose buckets are all empty is compared to the {@code projectionSamples} centers with the
+     * closest projections instead, and counted in the {@code LSH_FALLBACKS} job counter. If
+     * zero (the default), every point is compared to the {@code projectionSamples} centers with
+     * the closest projections.
+     */
+    public Builder numTables(int numTables) {
+      this.numTables = numTables;
+      return this;
+    }
+    
+    /**
+     * The number of neighboring buckets to probe in each hash table (two by default). More
+     * tables and more probes increase the recall of the index at the cost of speed.
+     */
+    public Builder numProbes(int numProbes) {
+      this.numProbes = numProbes;
+      return this;
+    }
+    
+    /**
+     * Count the number of points that are closest to each candidate center during the last
+     * iteration of k-means|| initialization instead of in a separate pass over the data. The
+     * points that are sampled on the last iteration are weighted by a local correction (each
+     * one takes its own weight from the count of its closest existing candidate) rather than
+     * by rescoring the data, so the weights are approximate.
+     */
+    public Builder fusedWeighting(boolean fusedWeighting) {
+      this.fusedWeighting = fusedWeighting;
+      return this;
+    }
+    
+    /**
+     * Sample the candidates on each iteration of k-means|| initialization by keeping each point
+     * independently with probability {@code samplesPerIteration * d^2 / phi}, where {@code phi}
+     * is the total cost of the point's fold from the previous iteration's scoring pass, instead
+     * of with a weighted reservoir sample. A point of weight {@code w} is kept with probability
+     * {@code 1 - (1 - p)^w}, as if each of its copies had been sampled on its own. Each task
+     * mixes its id into the seed, so the samples drawn on different splits are independent. The
+     * sampling is done entirely in the map phase, so the per-fold reduce is avoided, but the
+     * number of points that are added on each iteration is only {@code samplesPerIteration} in
+     * expectation (and, since the costs come from the previous iteration, usually somewhat
+     * less).
+     */
+    public Builder bernoulliSampling(boolean bernoulliSampling) {
+      this.bernoulliSampling = bernoulliSampling;
+      return this;
+    }
+    
+    /**
+     * The maximum number of candidate centers to keep for each fold during k-means||
+     * initialization. Whenever a fold has more candidates than this after an iteration, they
+     * are collapsed on the client via a weighted k-means++ reduction before the next pass
+     * over the data, which bounds the size of the index that is serialized into each task. If
+     * zero (the default), the candidate sets are unbounded.
+     */
+    public Builder maxCandidates(int maxCandidates) {
+      this.maxCandidates = maxCandidates;
+      return this;
+    }
+    
+    /**
+     * Write the output of the crossfold assignment of the input points to a temporary Avro
+     * file the first time that k-means|| initialization runs a job over it, and have every
+     * later pass read that file instead of re-reading and re-converting the raw input and
+     * re-assigning the folds. If {@link #singlePrecision(boolean)} is also set, the cached
+     * vectors are rounded to floats, so every pass after the first sees the rounded points.
+     */
+    public Builder cacheFolds(boolean cacheFolds) {
+      this.cacheFolds = cacheFolds;
+      return this;
+    }
+    
+    /**
+     * A local or HDFS path where the driver-side state of k-means|| initialization and of
+     * Lloyd's algorithm is written after each completed iteration. If a checkpoint already
+     * exists at this path when either one starts, it resumes from the iteration after the
+     * checkpointed one instead of starting over, and the checkpoint is removed once it
+     * finishes. A checkpoint only makes sense for a rerun with the same inputs and options,
+     * and each run should use its own path.
+     */
+    public Builder checkpointPath(String checkpointPath) {
+      this.checkpointPath = checkpointPath;
+      return this;
+    }
+    
+    /**
+     * Compute the covariance of each cluster in the same passes of Lloyd's algorithm that
+     * update the centers, instead of in a separate pass via
+     * {@link KMeansParallel#computeClusterCovarianceMatrix}. Each task keeps a dense
+     * upper-triangular matrix of sums for each center, so this is best suited to data with a
+     * modest number of dimensions. The sums are kept on every iteration, so that the result of
+     * whichever iteration turns out to be the last one can be used as is.
+     *
+     * <p>This is an approximation: a cluster is made up of the points that the last iteration
+     * assigned to the center that it started from, and its covariance is taken around its mean,
+     * i.e., the new center. A separate pass assigns the points to the new centers instead, so
+     * the two only agree once the assignments have stopped changing, e.g., once the centers
+     * have converged.
+     */
+    public Builder fusedCovariance(boolean fusedCovariance) {
+      this.fusedCovariance = fusedCovariance;
+      return this;
+    }
+    
+    /**
+     * Answer exact center assignments with a ball tree over the centers of each clustering
+     * whose leaves hold at most this many centers, which is much faster than scanning every
+     * center when there are thousands of them and the dimensionality is moderate. If zero
+     * (the default), exact assignments scan the centers.
+     */
+    public Builder ballTreeLeafSize(int ballTreeLeafSize) {
+      this.ballTreeLeafSize = ballTreeLeafSize;
+      return this;
+    }
+    
+    /**
+     * Answer approximate center assignments by searching an HNSW graph over the centers of
+     * each clustering, in which each center is linked to this many neighbors per layer,
+     * instead of via random projections. This is intended for clusterings with tens of
+     * thousands of centers or more. If zero (the default), no graphs are built.
+     */
+    public Builder hnswM(int hnswM) {
+      this.hnswM = hnswM;
+      return this;
+    }
+    
+    /**
+     * The number of closest centers to keep track of while linking each center into an HNSW
+     * graph. Larger values build better graphs more slowly.
+     */
+    public Builder hnswEfConstruction(int hnswEfConstruction) {
+      this.hnswEfConstruction = hnswEfConstruction;
+      return this;
+    }
+    
+    /**
+     * The number of closest centers to keep track of while searching an HNSW graph. Larger
+     * values increase the recall of the lookups at the cost of speed.
+     */
+    public Builder hnswEfSearch(int hnswEfSearch) {
+      this.hnswEfSearch = hnswEfSearch;
+      return this;
+    }
+    
+    /**
+     * Store the centers sparsely and generate the random projections from a hash instead of
+     * materializing them, so that the memory used by the centers index scales with the number
+     * of nonzero entries in the centers instead of with the dimensionality. This suits
+     * high-dimensional sparse input, e.g., data with many one-hot encoded categorical
+     * levels, and cannot be combined with the ball tree or HNSW options.
+     */
+    public Builder sparse(boolean sparse) {
+      this.sparse = sparse;
+      return this;
+    }
+    
+    /**
+     * Store the centers as floats, and shuffle the sampled and assigned points as
+     * {@code MLFloatVector} records, which halves the memory used by the centers index and
+     * the size of the intermediate data. Distances are still accumulated in double
+     * precision. This cannot be combined with the sparse, ball tree or HNSW options.
+     */
+    public Builder singlePrecision(boolean singlePrecision) {
+      this.singlePrecision = singlePrecision;
+      return this;
+    }
+    
+    /**
+     * Answer exact center assignments by scanning the centers of each clustering outwards from
+     * the norm of each point, stopping once the difference in norms alone rules out every
+     * remaining center. This is most effective when the norms of the points and centers are
+     * widely spread, and cannot be combined with the ball tree option.
+     */
+    public Builder normPruning(boolean normPruning) {
+      this.normPruning = normPruning;
+      return this;
+    }
+    
+    /**
+     * Answer exact center assignments of dense points by summing squared differences a few
+     * dimensions at a time, in decreasing order of the variance of the centers along each
+     * dimension, and abandoning each center as soon as the partial sum rules it out. This is
+     * most effective for high-dimensional data, and cannot be combined with the sparse or
+     * ball tree options.
+     */
+    public Builder earlyAbandon(boolean earlyAbandon) {
+      this.earlyAbandon = earlyAbandon;
+      return this;
+    }
+    
+    public KMeansParallel build() {
+      return new KMeansParallel(this);
+    }
+  }
+  
   public KMeansParallel() {
-    this(null, 128, 32);
+    this(builder());
   }
   
   /**
@@ -112,14 +391,56 @@ public class KMeansParallel {
    * for running the k-means algorithm for testing purposes.
    */
   public KMeansParallel(Random random, int projectionBits, int projectionSamples) {
-    this.projectionBits = projectionBits;
-    this.projectionSamples = projectionSamples;
-    if (random == null) {
+    this(random, projectionBits, projectionSamples, 0, 0);
+  }
+  
+  /**
+   * Constructor for running approximate center assignments against a multi-table LSH index;
+   * see {@link Builder#numTables(int)} and {@link Builder#numProbes(int)}.
+   */
+  public KMeansParallel(Random random, int projectionBits, int projectionSamples,
+      int numTables, int numProbes) {
+    this(builder().random(random).projectionBits(projectionBits)
+        .projectionSamples(projectionSamples).numTables(numTables).numProbes(numProbes));
+  }
+  
+  private KMeansParallel(Builder b) {
+    Preconditions.checkArgument(!b.sparse || (b.ballTreeLeafSize == 0 && b.hnswM == 0),
+        "Sparse centers cannot be used with ball trees or HNSW graphs");
+    Preconditions.checkArgument(!b.singlePrecision
+        || (!b.sparse && b.ballTreeLeafSize == 0 && b.hnswM == 0),
+        "Single-precision centers cannot be used with sparse centers, ball trees or HNSW graphs");
+    Preconditions.checkArgument(!b.normPruning || b.ballTreeLeafSize == 0,
+        "Norm pruning cannot be used with ball trees");
+    Preconditions.checkArgument(!b.earlyAbandon || (!b.sparse && b.ballTreeLeafSize == 0),
+        "Early abandoning cannot be used with sparse centers or ball trees");
+    Preconditions.checkArgument(b.numTables == 0 || b.projectionBits % b.numTables == 0,
+        "The %s projection bits cannot be split evenly across %s tables", b.projectionBits,
+        b.numTables);
+    this.projectionBits = b.projectionBits;
+    this.projectionSamples = b.projectionSamples;
+    this.numTables = b.numTables;
+    this.numProbes = b.numProbes;
+    this.fusedWeighting = b.fusedWeighting;
+    this.bernoulliSampling = b.bernoulliSampling;
+    this.maxCandidates = b.maxCandidates;
+    this.ballTreeLeafSize = b.ballTreeLeafSize;
+    this.hnswM = b.hnswM;
+    this.hnswEfConstruction = b.hnswEfConstruction;
+    this.hnswEfSearch = b.hnswEfSearch;
+    this.sparse = b.sparse;
+    this.singlePrecision = b.singlePrecision;
+    this.normPruning = b.normPruning;
+    this.earlyAbandon = b.earlyAbandon;
+    this.cacheFolds = b.cacheFolds;
+    this.checkpointPath = b.checkpointPath;
+    this.fusedCovariance = b.fusedCovariance;
+    if (b.random == null) {
       this.seed = System.currentTimeMillis();
     } else {
-      this.seed = random.nextLong();
+      this.seed = b.random.nextLong();
     }
-    this.random = random;
+    this.random = b.random;
   }
   
   /**
@@ -134,18 +455,66 @@ public class KMeansParallel {
    */
   public <V extends Vector> PObject<List<Double>> getCosts(PCollection<V> vecs, List<Centers> centers,
       boolean approx) {
+    return getWeightedCosts(weigh(vecs), centers, approx);
+  }
+  
+  /**
+   * Calculates the cost of each of the given {@code Centers} instances on a dataset of weighted
+   * points, such as the output of {@code Dedupe}, where each point contributes its squared
+   * distance to the {@code Centers} times its weight.
+   * 
+   * @param vecs The weighted dataset
+   * @param centers The candidate centers
+   * @param approx Whether or not to use approximate assignments to speed up computations
+   * @return A reference to the Crunch job that calculates the cost for each centers instance
+   */
+  public PObject<List<Double>> getWeightedCosts(PCollection<Weighted<Vector>> vecs,
+      List<Centers> centers, boolean approx) {
     Preconditions.checkArgument(!centers.isEmpty(), "No centers specified");
     return getCosts(vecs, createIndex(centers), approx);
   }
 
   private CentersIndex createIndex(List<Centers> centers) {
-    return new CentersIndex(centers, projectionBits, projectionSamples, seed);
+    CentersIndex index = newIndex(centers.size(), centers.get(0).get(0).size(), seed);
+    for (int i = 0; i < centers.size(); i++) {
+      for (Vector v : centers.get(i)) {
+        index.add(v, i);
+      }
+    }
+    return configure(index);
   }
   
-  private static <V extends Vector> PObject<List<Double>> getCosts(PCollection<V> vecs, CentersIndex centers,
-      boolean approx) {
+  private CentersIndex newIndex(int numClusterings, int dimensions, long indexSeed) {
+    CentersIndex index = new CentersIndex(numClusterings, dimensions, projectionBits,
+        projectionSamples, numTables, numProbes, indexSeed);
+    if (sparse) {
+      index.useSparseStorage();
+    } else if (singlePrecision) {
+      index.useFloatStorage();
+    }
+    return index;
+  }
+  
+  private CentersIndex configure(CentersIndex index) {
+    if (ballTreeLeafSize > 0) {
+      index.useBallTrees(ballTreeLeafSize);
+    }
+    if (normPruning) {
+      index.useNormPruning();
+    }
+    if (earlyAbandon) {
+      index.useEarlyAbandon();
+    }
+    if (hnswM > 0) {
+      index.useHnsw(hnswM, hnswEfConstruction, hnswEfSearch);
+    }
+    return index;
+  }
+  
+  private static PObject<List<Double>> getCosts(PCollection<Weighted<Vector>> vecs,
+      CentersIndex centers, boolean approx) {
     return new ListPObject<Double>(vecs
-        .parallelDo("center-costs", new CenterCostFn<V>(centers, approx), tableOf(ints(), doubles()))
+        .parallelDo("center-costs", new CenterCostFn(centers, approx), tableOf(ints(), doubles()))
         .groupByKey(1)
         .combineValues(Aggregators.SUM_DOUBLES()));    
   }
@@ -176,12 +545,28 @@ public class KMeansParallel {
    */
   public <V extends NamedVector> Records computeClusterAssignments(
       PCollection<V> vecs, List<Centers> centers, List<Integer> clusterIds) {
+    return computeClusterAssignments(vecs, centers, clusterIds, false);
+  }
+  
+  /**
+   * For each of the {@code NamedVector} instances in the given {@code PCollection}, calculate which
+   * cluster in each of the {@code Centers} it is assigned (i.e., closest) to and its distance from
+   * that closest center, optionally using approximate cluster assignment.
+   * 
+   * @param vecs The named vectors, with the name used as a unique identifier
+   * @param centers The centers of the clusters
+   * @param clusterIds Integer identifiers to use for the clusters
+   * @param approx Whether or not to use approximate cluster assignment (faster, but less accurate)
+   * @return A {@code Records} instance containing the cluster assignment info for each point
+   */
+  public <V extends NamedVector> Records computeClusterAssignments(
+      PCollection<V> vecs, List<Centers> centers, List<Integer> clusterIds, boolean approx) {
     if (clusterIds != null && !clusterIds.isEmpty()) {
       Preconditions.checkArgument(centers.size() == clusterIds.size(),
           "Num centers and num clusters must be equal");
     }
     CentersIndex index = createIndex(centers);
-    return new Records(vecs.parallelDo("assignments", new AssignedCenterFn<V>(index, clusterIds),
+    return new Records(vecs.parallelDo("assignments", new AssignedCenterFn<V>(index, clusterIds, approx),
         MLRecords.record(ASSIGNMENT_SPEC)), ASSIGNMENT_SPEC);
   }
 
@@ -203,7 +588,7 @@ public class KMeansParallel {
     CentersIndex index = createIndex(centers);
     PTable<ClusterKey, Vector> assignedCenters = vecs.parallelDo("assign",
         new CovarianceCentersFn<Vector>(index, clusterIds, approx),
-        Avros.tableOf(Avros.reflects(ClusterKey.class), MLAvros.vector()));
+        Avros.tableOf(Avros.reflects(ClusterKey.class), MLAvros.vector(singlePrecision)));
     return new ClusterCovariancePObject(Covariance.cov(assignedCenters));
   }
 
@@ -233,17 +618,52 @@ public class KMeansParallel {
    */
   public <V extends Vector> PObject<List<List<Long>>> getCountsOfClosest(
       PCollection<V> vecs, List<Centers> centers) {
+    return getWeightedCountsOfClosest(weigh(vecs), centers);
+  }
+  
+  /**
+   * Like {@link #getCountsOfClosest(PCollection, List)}, except that each point in the dataset
+   * counts as many times as its weight, which must be a whole number.
+   * 
+   * @param vecs The weighted dataset
+   * @param centers The collection of {@code Centers} to do the calculations on
+   * @return A reference to the output file that contains the calculation for each of the centers
+   */
+  public PObject<List<List<Long>>> getWeightedCountsOfClosest(
+      PCollection<Weighted<Vector>> vecs, List<Centers> centers) {
     Preconditions.checkArgument(!centers.isEmpty(), "No centers specified");
     Crossfold cf = new Crossfold(1);
     return getCountsOfClosest(cf.apply(vecs), createIndex(centers));
   }
 
-  private static <V extends Vector> PObject<List<List<Long>>> getCountsOfClosest(
-      PCollection<Pair<Integer, V>> vecs, CentersIndex centers) {
+  private static PObject<List<List<Long>>> getCountsOfClosest(
+      PCollection<Pair<Integer, Weighted<Vector>>> vecs, CentersIndex centers) {
     return new ListOfListsPObject<Long>(
         vecs
-        .parallelDo("closest-center", new ClosestCenterFn<V>(centers), pairs(ints(), ints()))
-        .count(), centers.getPointsPerCluster(), 0L);
+        .parallelDo("closest-center", new ClosestCenterFn(centers),
+            tableOf(pairs(ints(), ints()), Avros.longs()))
+        .groupByKey()
+        .combineValues(Aggregators.SUM_LONGS()), centers.getPointsPerCluster(), 0L);
+  }
+  
+  /**
+   * Wraps each of the given points in a {@code Weighted<Vector>} with weight 1.
+   */
+  private static <V extends Vector> PCollection<Weighted<Vector>> weigh(PCollection<V> vecs) {
+    return vecs.parallelDo("weigh", new WeighFn<V>(), MLAvros.weightedVector());
+  }
+  
+  /**
+   * Returns the number of points that the given weighted point stands for.
+   */
+  private static long multiplicity(Weighted<Vector> wv) {
+    return multiplicity(wv.weight());
+  }
+  
+  private static long multiplicity(double weight) {
+    Preconditions.checkArgument(weight >= 0.0 && weight == Math.rint(weight),
+        "Point weights must be non-negative whole numbers, not %s", weight);
+    return (long) weight;
   }
 
   /**
@@ -254,7 +674,7 @@ public class KMeansParallel {
   public <V extends Vector> List<Weighted<Vector>> initialization(
       PCollection<V> vecs, int numIterations, int samplesPerIteration,
       List<Vector> initialPoints) {
-    return initialization(vecs, numIterations, samplesPerIteration, initialPoints,
+    return weightedInitialization(weigh(vecs), numIterations, samplesPerIteration, initialPoints,
         new Crossfold(1)).get(0);
   }
   
@@ -266,31 +686,302 @@ public class KMeansParallel {
   public <V extends Vector> List<List<Weighted<Vector>>> initialization(
       PCollection<V> vecs, int numIterations, int samplesPerIteration,
       List<Vector> initialPoints, Crossfold crossfold) {
+    return weightedInitialization(weigh(vecs), numIterations, samplesPerIteration, initialPoints,
+        crossfold);
+  }
+  
+  /**
+   * Performs the k-means|| initialization on a dataset of weighted points, such as the output
+   * of {@code Dedupe}, where each point stands for as many copies of itself as its weight, which
+   * must be a whole number. A point's score for sampling is its squared distance to the closest
+   * candidate times its weight, and the weight of each candidate is the total weight of the
+   * points that are closest to it.
+   */
+  public List<List<Weighted<Vector>>> weightedInitialization(
+      PCollection<Weighted<Vector>> vecs, int numIterations, int samplesPerIteration,
+      List<Vector> initialPoints, Crossfold crossfold) {
 
-    CentersIndex centers = new CentersIndex(crossfold.getNumFolds(),
-        initialPoints.get(0).size(), projectionBits, projectionSamples,
-        random == null ? System.currentTimeMillis() : random.nextLong());
-
-    for (Vector initialPoint : initialPoints) {
-      for (int j = 0; j < crossfold.getNumFolds(); j++) {
-        centers.add(initialPoint, j);
+    int numFolds = crossfold.getNumFolds();
+    int dimensions = initialPoints.get(0).size();
+    Random rand = random;
+    long indexSeed;
+    CentersIndex centers;
+    List<List<Double>> masses = Lists.newArrayList();
+    double[] phi = null;
+    int start = 0;
+    MLInitializationCheckpoint checkpoint = checkpointPath == null ? null :
+        Checkpoints.read(MLInitializationCheckpoint.class, checkpointPath, getConf(vecs));
+    if (checkpoint == null) {
+      indexSeed = rand == null ? System.currentTimeMillis() : rand.nextLong();
+      centers = configure(newIndex(numFolds, dimensions, indexSeed));
+      for (int j = 0; j < numFolds; j++) {
+        masses.add(Lists.<Double>newArrayList());
+      }
+      for (Vector initialPoint : initialPoints) {
+        for (int j = 0; j < numFolds; j++) {
+          centers.add(initialPoint, j);
+        }
+      }
+    } else {
+      Preconditions.checkState(checkpoint.getCandidates().size() == numFolds,
+          "The checkpoint at %s is for %s folds, not %s", checkpointPath,
+          checkpoint.getCandidates().size(), numFolds);
+      LOG.info(String.format("Resuming k-means|| initialization after iteration %d from %s",
+          checkpoint.getIteration(), checkpointPath));
+      start = checkpoint.getIteration();
+      indexSeed = checkpoint.getIndexSeed();
+      centers = configure(newIndex(numFolds, dimensions, indexSeed));
+      for (int j = 0; j < numFolds; j++) {
+        for (MLVector v : checkpoint.getCandidates().get(j).getCenters()) {
+          centers.add(VectorConvert.toVector(v), j);
+        }
+        masses.add(Lists.newArrayList(checkpoint.getMasses().get(j)));
+      }
+      if (checkpoint.getPhi() != null) {
+        phi = Doubles.toArray(checkpoint.getPhi());
+      }
+      if (checkpoint.getRandom() != null) {
+        rand = Checkpoints.toRandom(checkpoint.getRandom());
       }
     }
     
-    PType<V> ptype = vecs.getPType();
-    PTypeFamily ptf = ptype.getFamily();
-    PTableType<Integer, Pair<V, Double>> ptt = ptf.tableOf(
-        ptf.ints(), ptf.pairs(ptype, ptf.doubles()));
-    PCollection<Pair<Integer, V>> folds = crossfold.apply(vecs);
-    for (int i = 0; i < numIterations; i++) {
+
+    PTableType<Integer, Pair<Weighted<Vector>, Double>> ptt = tableOf(ints(),
+        pairs(MLAvros.weightedVector(singlePrecision), doubles()));
+    PCollection<Pair<Integer, Weighted<Vector>>> folds = crossfold.apply(vecs);
+    if (cacheFolds) {
+      folds = cache(folds);
+    }
+    if (bernoulliSampling && phi == null && start < numIterations) {
+      LOG.info("Computing the initial cost of each fold for k-means|| sampling");
+      centers.updateIndices();
+      ScoringFn costFn = new ScoringFn(centers, false, new double[numFolds], 0.0, null);
+      phi = getFoldCosts(folds.parallelDo("computeCosts", costFn, ptt)
+          .filter(new ScoredPointsFilter(false)).materialize(), numFolds);
+    }
+    for (int i = start; i < numIterations; i++) {
       LOG.info(String.format("Running iteration %d of k-means|| initialization procedure", i + 1));
-      ScoringFn<V> scoringFn = new ScoringFn<V>(centers);
-      PTable<Integer, Pair<V, Double>> scores = folds.parallelDo("computeDistances", scoringFn, ptt);
-      PTable<Integer, V> sample = ReservoirSampling.groupedWeightedSample(
-          scores, samplesPerIteration, random);
-      updateCenters(sample.materialize(), centers);
+      centers.updateIndices();
+      boolean countClosest = fusedWeighting && i == numIterations - 1;
+      ScoringFn scoringFn;
+      if (phi == null) {
+        scoringFn = new ScoringFn(centers, countClosest);
+      } else {
+        scoringFn = new ScoringFn(centers, countClosest, phi, samplesPerIteration,
+            rand == null ? null : rand.nextLong());
+      }
+      PTable<Integer, Pair<Weighted<Vector>, Double>> scores = folds.parallelDo("computeDistances",
+          scoringFn, ptt);
+      PCollection<Pair<Integer, Weighted<Vector>>> sample;
+      if (phi == null) {
+        sample = ReservoirSampling.groupedWeightedSample(
+            scores.filter(new ScoredPointsFilter(true)), samplesPerIteration, rand);
+      } else {
+        sample = scores.filter(new ScoredPointsFilter(true)).parallelDo(
+            new DropScoreFn(), tableOf(ints(), MLAvros.weightedVector(singlePrecision)));
+      }
+      Iterable<Pair<Integer, Pair<Weighted<Vector>, Double>>> summaries = null;
+      if (countClosest || phi != null) {
+        // Materialize both outputs of the scoring pass before reading either one
+        summaries = scores.filter(new ScoredPointsFilter(false)).materialize();
+      }
+      Iterable<Pair<Integer, Weighted<Vector>>> sampled = sample.materialize();
+      if (countClosest) {
+        List<List<Weighted<Vector>>> weighted = getCorrectedWeightedVectors(summaries, sampled,
+            centers);
+        if (maxCandidates > 0) {
+          weighted = reduceWeightedVectors(weighted, rand);
+        }
+        deleteCheckpoint(vecs);
+        return weighted;
+      }
+      if (phi != null) {
+        phi = getFoldCosts(summaries, phi.length);
+        LOG.info("Fold costs for k-means|| sampling: " + Arrays.toString(phi));
+      }
+      updateCenters(sampled, centers);
+      if (maxCandidates > 0) {
+        centers = reduceCandidates(centers, masses, indexSeed, rand);
+      }
+      if (checkpointPath != null) {
+        writeCheckpoint(i + 1, indexSeed, centers, masses, phi, rand, vecs);
+      }
     }
-    return getWeightedVectors(folds, centers);
+    List<List<Weighted<Vector>>> weighted = getWeightedVectors(folds, centers);
+    deleteCheckpoint(vecs);
+    return weighted;
+  }
+  
+  private void writeCheckpoint(int iteration, long indexSeed, CentersIndex centers,
+      List<List<Double>> masses, double[] phi, Random rand, PCollection<?> vecs) {
+    List<MLCenters> candidates = Lists.newArrayList();
+    for (int j = 0; j < centers.getPointsPerCluster().length; j++) {
+      // Not a Centers instance, since that would drop any duplicate candidates
+      candidates.add(MLCenters.newBuilder()
+          .setCenters(Lists.newArrayList(Lists.transform(centers.getPoints(j),
+              VectorConvert.FROM_VECTOR)))
+          .build());
+    }
+    MLInitializationCheckpoint checkpoint = MLInitializationCheckpoint.newBuilder()
+        .setIteration(iteration)
+        .setIndexSeed(indexSeed)
+        .setCandidates(candidates)
+        .setMasses(masses)
+        .setPhi(phi == null ? null : Doubles.asList(phi))
+        .setRandom(rand == null ? null : Checkpoints.toBytes(rand))
+        .build();
+    Checkpoints.write(checkpoint, checkpointPath, getConf(vecs));
+  }
+  
+  private void deleteCheckpoint(PCollection<?> vecs) {
+    if (checkpointPath != null) {
+      Checkpoints.delete(checkpointPath, getConf(vecs));
+    }
+  }
+  
+  private static Configuration getConf(PCollection<?> vecs) {
+    return vecs.getPipeline().getConfiguration();
+  }
+  
+  /**
+   * Materializes the fold-tagged points in a run of their own, so that the planner reads every
+   * later pass over them from the materialized output instead of recomputing them.
+   */
+  private PCollection<Pair<Integer, Weighted<Vector>>> cache(
+      PCollection<Pair<Integer, Weighted<Vector>>> folds) {
+    LOG.info("Caching the fold assignments of the input points");
+    PCollection<Pair<Integer, Weighted<Vector>>> cached = folds.parallelDo("cacheFolds",
+        IdentityFn.<Pair<Integer, Weighted<Vector>>>getInstance(),
+        pairs(ints(), MLAvros.weightedVector(singlePrecision)));
+    // Written by the first job that reads it and then read back by every later one, without
+    // running the caller's other pending outputs here
+    cached.materialize();
+    return cached;
+  }
+  
+  /**
+   * Collapses the candidates of every fold that has more than {@code maxCandidates} of them
+   * via a weighted k-means++ reduction, where the weight of each candidate is the number of
+   * candidates that have been merged into it so far. Returns a new index if any fold was
+   * reduced, and the given one otherwise.
+   */
+  private CentersIndex reduceCandidates(CentersIndex centers, List<List<Double>> masses,
+      long indexSeed, Random rand) {
+    int[] numPoints = centers.getPointsPerCluster();
+    boolean reduce = false;
+    for (int i = 0; i < numPoints.length; i++) {
+      List<Double> m = masses.get(i);
+      while (m.size() < numPoints[i]) {
+        m.add(1.0);
+      }
+      reduce |= numPoints[i] > maxCandidates;
+    }
+    if (!reduce) {
+      return centers;
+    }
+    
+    Random r = rand == null ? new Random() : rand;
+    CentersIndex reduced = newIndex(numPoints.length, centers.getDimensions(), indexSeed);
+    for (int i = 0; i < numPoints.length; i++) {
+      List<Vector> points = centers.getPoints(i);
+      List<Double> m = masses.get(i);
+      if (points.size() > maxCandidates) {
+        LOG.info(String.format("Reducing the %d candidates in fold %d to %d",
+            points.size(), i, maxCandidates));
+        List<Weighted<Vector>> weighted = Lists.newArrayListWithCapacity(points.size());
+        for (int j = 0; j < points.size(); j++) {
+          weighted.add(new Weighted<Vector>(points.get(j), m.get(j)));
+        }
+        m.clear();
+        for (Weighted<Vector> wv : CandidateReduction.reduce(weighted, maxCandidates, r)) {
+          reduced.add(wv.thing(), i);
+          m.add(wv.weight());
+        }
+      } else {
+        for (Vector v : points) {
+          reduced.add(v, i);
+        }
+      }
+    }
+    return configure(reduced);
+  }
+  
+  /**
+   * Applies the {@code maxCandidates} bound to the weighted candidates from the last iteration
+   * of a fused run, which are sampled after the last call to {@code reduceCandidates}. The
+   * weight of each dropped candidate, which is already a count of points, goes to the kept
+   * candidate that is closest to it.
+   */
+  private List<List<Weighted<Vector>>> reduceWeightedVectors(
+      List<List<Weighted<Vector>>> weighted, Random rand) {
+    Random r = rand == null ? new Random() : rand;
+    List<List<Weighted<Vector>>> reduced = Lists.newArrayListWithCapacity(weighted.size());
+    for (int i = 0; i < weighted.size(); i++) {
+      List<Weighted<Vector>> fold = weighted.get(i);
+      if (fold.size() > maxCandidates) {
+        LOG.info(String.format("Reducing the %d weighted candidates in fold %d to %d",
+            fold.size(), i, maxCandidates));
+        fold = CandidateReduction.reduce(fold, maxCandidates, r);
+      }
+      reduced.add(fold);
+    }
+    return reduced;
+  }
+  
+  private static double[] getFoldCosts(
+      Iterable<Pair<Integer, Pair<Weighted<Vector>, Double>>> summaries, int numFolds) {
+    double[] costs = new double[numFolds];
+    for (Pair<Integer, Pair<Weighted<Vector>, Double>> p : summaries) {
+      costs[ScoringFn.SUMMARY_KEY_BASE - p.first()] += p.second().second();
+    }
+    return costs;
+  }
+  
+  private static List<List<Weighted<Vector>>> getCorrectedWeightedVectors(
+      Iterable<Pair<Integer, Pair<Weighted<Vector>, Double>>> countRecords,
+      Iterable<Pair<Integer, Weighted<Vector>>> sampled,
+      CentersIndex centers) {
+    LOG.info("Correcting the weight of each candidate center for the final sample");
+    int[] numCandidates = centers.getPointsPerCluster().clone();
+    long[][] counts = new long[numCandidates.length][];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = new long[numCandidates[i]];
+    }
+    for (Pair<Integer, Pair<Weighted<Vector>, Double>> p : countRecords) {
+      int fold = ScoringFn.SUMMARY_KEY_BASE - p.first();
+      Vector c = p.second().first().thing();
+      for (int j = 0; j < counts[fold].length; j++) {
+        counts[fold][j] += (long) c.getQuick(j);
+      }
+    }
+    
+    // Each newly sampled point was counted toward its closest existing candidate, so move
+    // that count over to the new candidate before adding it to the index.
+    List<Pair<Integer, Weighted<Vector>>> newPoints = Lists.newArrayList(sampled);
+    List<List<Long>> newCounts = Lists.newArrayList();
+    for (int i = 0; i < counts.length; i++) {
+      newCounts.add(Lists.<Long>newArrayList());
+    }
+    Distances d = centers.newDistances();
+    for (Pair<Integer, Weighted<Vector>> p : newPoints) {
+      int fold = p.first();
+      int closest = centers.getDistance(p.second().thing(), fold, true, d).closestPoints[fold];
+      long moved = Math.min(counts[fold][closest], Math.max(1L, multiplicity(p.second())));
+      counts[fold][closest] -= moved;
+      newCounts.get(fold).add(Math.max(1L, moved));
+    }
+    updateCenters(newPoints, centers);
+    
+    List<List<Long>> weights = Lists.newArrayList();
+    for (int i = 0; i < counts.length; i++) {
+      List<Long> w = Lists.newArrayList();
+      for (long c : counts[i]) {
+        w.add(c);
+      }
+      w.addAll(newCounts.get(i));
+      weights.add(w);
+    }
+    return centers.getWeightedVectors(weights);
   }
   
   /**
@@ -301,127 +992,661 @@ public class KMeansParallel {
    * @param centers The list of initial centers
    * @param numIterations The number of iterations to run, with each iteration corresponding to a MapReduce job
    * @param approx Whether to use random projection for assigning points to centers
-   * @return
+   * @return The centers after the last iteration
    */
   public <V extends Vector> List<Centers> lloydsAlgorithm(PCollection<V> points, List<Centers> centers,
       int numIterations, boolean approx) {
-    PTypeFamily tf = points.getTypeFamily();
-    PTableType<Pair<Integer, Integer>, Pair<V, Long>> ptt = tf.tableOf(tf.pairs(tf.ints(), tf.ints()),
-        tf.pairs(points.getPType(), tf.longs()));
-    Aggregator<Pair<V, Long>> agg = new SumVectorsAggregator<V>();
-    for (int i = 0; i < numIterations; i++) {
-      CentersIndex index = createIndex(centers);
-      LloydsMapFn<V> mapFn = new LloydsMapFn<V>(index, approx);
-      centers = new LloydsCenters<V>(points.parallelDo("lloyds-" + i, mapFn, ptt)
-          .groupByKey()
-          .combineValues(agg), centers.size()).getValue();
-    }
-    return centers;
-  }
-  
-  private static <V extends Vector> List<List<Weighted<Vector>>> getWeightedVectors(
-      PCollection<Pair<Integer, V>> folds, CentersIndex centers) {
+    return lloydsAlgorithm(points, centers, numIterations, approx, 0.0, 0.0).getCenters();
+  }
+  
+  /**
+   * Runs Lloyd's algorithm on the given points for up to the given number of iterations, stopping
+   * early once the centers have converged. The cost of each clustering is computed in the same
+   * pass over the data that updates its centers.
+   * 
+   * @param points The data points to cluster
+   * @param centers The list of initial centers
+   * @param numIterations The maximum number of iterations to run, with each iteration corresponding
+   *     to a MapReduce job
+   * @param approx Whether to use random projection for assigning points to centers
+   * @param costTolerance Stop once the relative improvement in the cost of every clustering from one
+   *     iteration to the next is less than this value (disabled if zero)
+   * @param shiftTolerance Stop once no center moves further than this distance during an iteration
+   *     (disabled if zero)
+   * @return The final centers and the cost of each clustering on each iteration
+   */
+  public <V extends Vector> LloydsResult lloydsAlgorithm(PCollection<V> points, List<Centers> centers,
+      int numIterations, boolean approx, double costTolerance, double shiftTolerance) {
+    return weightedLloydsAlgorithm(weigh(points), centers, numIterations, approx, costTolerance,
+        shiftTolerance);
+  }
+  
+  /**
+   * Runs Lloyd's algorithm on a dataset of weighted points, such as the output of {@code Dedupe},
+   * where each point stands for as many copies of itself as its weight, which must be a whole
+   * number. Otherwise the same as
+   * {@link #lloydsAlgorithm(PCollection, List, int, boolean, double, double)}.
+   */
+  public LloydsResult weightedLloydsAlgorithm(PCollection<Weighted<Vector>> points,
+      List<Centers> centers, int numIterations, boolean approx, double costTolerance,
+      double shiftTolerance) {
+    List<List<Double>> costs = Lists.newArrayList();
+    int start = 0;
+    boolean converged = false;
+    MLLloydsCheckpoint checkpoint = checkpointPath == null ? null :
+        Checkpoints.read(MLLloydsCheckpoint.class, checkpointPath, getConf(points));
+    if (checkpoint != null) {
+      Preconditions.checkState(checkpoint.getCenters().size() == centers.size(),
+          "The checkpoint at %s is for %s clusterings, not %s", checkpointPath,
+          checkpoint.getCenters().size(), centers.size());
+      LOG.info(String.format("Resuming Lloyd's algorithm after iteration %d from %s",
+          checkpoint.getIteration(), checkpointPath));
+      start = checkpoint.getIteration();
+      centers = Lists.newArrayList(Lists.transform(checkpoint.getCenters(),
+          VectorConvert.TO_CENTERS));
+      for (List<Double> c : checkpoint.getCosts()) {
+        costs.add(Lists.newArrayList(c));
+      }
+      converged = checkpoint.getConverged();
+    }
+    List<MLClusterCovariance> covariances = null;
+    for (int i = start; i < numIterations && !converged; i++) {
+      LloydsIteration iter = lloydsIteration(points, centers, approx, fusedCovariance,
+          "lloyds-" + i);
+      LOG.info(String.format("Lloyd's iteration %d: costs = %s, max center shift = %.6f",
+          i + 1, iter.costs, iter.maxShift));
+      if (shiftTolerance > 0.0 && iter.maxShift < shiftTolerance) {
+        converged = true;
+      }
+      if (costTolerance > 0.0 && !costs.isEmpty()
+          && maxRelativeImprovement(costs.get(costs.size() - 1), iter.costs) < costTolerance) {
+        converged = true;
+      }
+      costs.add(iter.costs);
+      centers = iter.centers;
+      covariances = iter.covariances;
+      if (checkpointPath != null) {
+        Checkpoints.write(MLLloydsCheckpoint.newBuilder()
+            .setIteration(i + 1)
+            .setCenters(Lists.newArrayList(Lists.transform(centers, VectorConvert.FROM_CENTERS)))
+            .setCosts(costs)
+            .setConverged(converged)
+            .build(), checkpointPath, getConf(points));
+      }
+    }
+    if (converged) {
+      LOG.info(String.format("Lloyd's algorithm converged after %d iterations", costs.size()));
+    }
+    if (fusedCovariance && covariances == null) {
+      // Only when a checkpoint left no iterations to run, e.g., because they had converged
+      LOG.info("Computing the covariance of each cluster around the final centers");
+      covariances = lloydsIteration(points, centers, approx, true, "lloyds-covariance").covariances;
+    }
+    deleteCheckpoint(points);
+    return new LloydsResult(centers, costs, converged, covariances);
+  }
+  
+  private LloydsIteration lloydsIteration(PCollection<Weighted<Vector>> points,
+      List<Centers> centers, boolean approx, boolean covariance, String name) {
+    PTableType<Pair<Integer, Integer>, Pair<Vector, Long>> ptt = tableOf(pairs(ints(), ints()),
+        pairs(MLAvros.vector(), Avros.longs()));
+    CentersIndex index = createIndex(centers);
+    LloydsMapFn mapFn = new LloydsMapFn(index, approx, covariance);
+    return new LloydsCenters(points.parallelDo(name, mapFn, ptt)
+        .groupByKey()
+        .combineValues(new SumVectorsAggregator<Vector>()), centers, index).getValue();
+  }
+  
+  private static double maxRelativeImprovement(List<Double> previous, List<Double> current) {
+    double max = 0.0;
+    for (int i = 0; i < previous.size(); i++) {
+      if (previous.get(i) > 0.0) {
+        max = Math.max(max, (previous.get(i) - current.get(i)) / previous.get(i));
+      }
+    }
+    return max;
+  }
+  
+  private static List<List<Weighted<Vector>>> getWeightedVectors(
+      PCollection<Pair<Integer, Weighted<Vector>>> folds, CentersIndex centers) {
     LOG.info("Computing the weight of each candidate center");
+    centers.updateIndices();
     List<List<Long>> indexWeights = getCountsOfClosest(folds, centers).getValue();
     return centers.getWeightedVectors(indexWeights); 
   }
   
-  private static <V extends Vector> void updateCenters(
-      Iterable<Pair<Integer, V>> vecs,
+  private static void updateCenters(
+      Iterable<Pair<Integer, Weighted<Vector>>> vecs,
       CentersIndex centers) {
-    for (Pair<Integer, V> p : vecs) {
-      centers.add(p.second(), p.first());
+    for (Pair<Integer, Weighted<Vector>> p : vecs) {
+      centers.add(p.second().thing(), p.first());
     }
   }
   
-  private static class LloydsMapFn<V extends Vector> extends DoFn<V, Pair<Pair<Integer, Integer>, Pair<V, Long>>> {
+  /**
+   * Assigns each point to its closest center in each clustering and sums up the assigned
+   * points in memory, emitting a single (sum, count) pair for each center when the task
+   * completes so that the shuffle does not grow with the number of points. The cost of each
+   * clustering is emitted as a one-element sum under the {@code COST_ID} point id.
+   *
+   * <p>If {@code covariance} is set, it also sums the upper triangle of the outer product of
+   * each point's offset from its (old) center, and emits the sums for center {@code j} under
+   * the point id {@code MOMENTS_ID_BASE - j}. Taking the offsets from the old center rather
+   * than from the origin keeps the sums small, so that subtracting the shift of the center
+   * from them loses little precision. The sums are over the points assigned to the old
+   * center, so they describe the clusters of this iteration rather than of the new centers.
+   */
+  private static class LloydsMapFn extends DoFn<Weighted<Vector>, Pair<Pair<Integer, Integer>, Pair<Vector, Long>>> {
+    static final int COST_ID = -1;
+    static final int MOMENTS_ID_BASE = -2;
+    
     private final CentersIndex centers;
     private final boolean approx;
+    private final boolean covariance;
+    private transient Distances distances;
+    private transient VectorBlock<Vector> block;
+    private transient double[][] sums;
+    private transient long[][] counts;
+    private transient double[] costs;
+    private transient double[][] origins;
+    private transient double[][] moments;
+    private transient double[] offset;
     
-    private LloydsMapFn(CentersIndex centers, boolean approx) {
+    private LloydsMapFn(CentersIndex centers, boolean approx, boolean covariance) {
       this.centers = centers;
       this.approx = approx;
+      this.covariance = covariance;
+    }
+    
+    @Override
+    public void initialize() {
+      if (approx) {
+        distances = centers.newDistances();
+      } else {
+        block = new VectorBlock<Vector>(centers, VectorBlock.DEFAULT_SIZE);
+      }
+      int[] numPoints = centers.getPointsPerCluster();
+      sums = new double[numPoints.length][];
+      counts = new long[numPoints.length][];
+      costs = new double[numPoints.length];
+      for (int i = 0; i < numPoints.length; i++) {
+        sums[i] = new double[numPoints[i] * centers.getDimensions()];
+        counts[i] = new long[numPoints[i]];
+      }
+      if (covariance) {
+        int dims = centers.getDimensions();
+        origins = new double[numPoints.length][];
+        moments = new double[numPoints.length][];
+        offset = new double[dims];
+        for (int i = 0; i < numPoints.length; i++) {
+          origins[i] = new double[numPoints[i] * dims];
+          int j = 0;
+          for (Vector p : centers.getPoints(i)) {
+            addTo(origins[i], j * dims, p, 1.0);
+            j++;
+          }
+          moments[i] = new double[numPoints[i] * triangleSize(dims)];
+        }
+      }
     }
     
     @Override
-    public void process(V vec, Emitter<Pair<Pair<Integer, Integer>, Pair<V, Long>>> emitFn) {
-      Distances d = centers.getDistances(vec, approx);
-      Pair<V, Long> out = Pair.of(vec, 1L);
+    public void process(Weighted<Vector> wv,
+        Emitter<Pair<Pair<Integer, Integer>, Pair<Vector, Long>>> emitFn) {
+      if (block == null) {
+        add(wv.thing(), wv.weight(), centers.getDistances(wv.thing(), approx, distances));
+      } else if (block.add(wv.thing(), wv.weight())) {
+        flush();
+      }
+    }
+    
+    private void flush() {
+      centers.getDistances(block, approx);
+      for (int b = 0; b < block.size(); b++) {
+        add(block.get(b), block.weight(b), block.distances(b));
+      }
+      block.clear();
+    }
+    
+    private void add(Vector vec, double weight, Distances d) {
+      int dims = centers.getDimensions();
+      long count = multiplicity(weight);
       for (int i = 0; i < d.closestPoints.length; i++) {
-        // TODO: cache
-        emitFn.emit(Pair.of(Pair.of(i, d.closestPoints[i]), out));
+        int closest = d.closestPoints[i];
+        addTo(sums[i], closest * dims, vec, weight);
+        counts[i][closest] += count;
+        costs[i] += weight * d.clusterDistances[i];
+        if (moments != null) {
+          addMoments(i, closest, vec, weight);
+        }
       }
     }
+    
+    private void addMoments(int i, int closest, Vector vec, double weight) {
+      int dims = centers.getDimensions();
+      int start = closest * dims;
+      for (int a = 0; a < dims; a++) {
+        offset[a] = -origins[i][start + a];
+      }
+      addTo(offset, 0, vec, 1.0);
+      double[] m = moments[i];
+      int k = closest * triangleSize(dims);
+      for (int a = 0; a < dims; a++) {
+        double wa = weight * offset[a];
+        for (int b = a; b < dims; b++) {
+          m[k++] += wa * offset[b];
+        }
+      }
+    }
+    
+    @Override
+    public void cleanup(Emitter<Pair<Pair<Integer, Integer>, Pair<Vector, Long>>> emitFn) {
+      if (distances != null) {
+        distances.reportFallbacks(getContext());
+      }
+      if (block != null) {
+        flush();
+      }
+      int dims = centers.getDimensions();
+      for (int i = 0; i < counts.length; i++) {
+        emitFn.emit(Pair.of(Pair.of(i, COST_ID), Pair.of(Vectors.of(costs[i]), 1L)));
+        for (int j = 0; j < counts[i].length; j++) {
+          if (counts[i][j] > 0) {
+            Vector sum = Vectors.of(Arrays.copyOfRange(sums[i], j * dims, (j + 1) * dims));
+            emitFn.emit(Pair.of(Pair.of(i, j), Pair.of(sum, counts[i][j])));
+            if (moments != null) {
+              int tri = triangleSize(dims);
+              Vector m = Vectors.of(Arrays.copyOfRange(moments[i], j * tri, (j + 1) * tri));
+              emitFn.emit(Pair.of(Pair.of(i, MOMENTS_ID_BASE - j), Pair.of(m, counts[i][j])));
+            }
+          }
+        }
+      }
+    }
+  }
+  
+  private static int triangleSize(int dims) {
+    return dims * (dims + 1) / 2;
   }
   
-  private static class LloydsCenters<V extends Vector> extends PObjectImpl<Pair<Pair<Integer, Integer>, Pair<V, Long>>, List<Centers>> {
+  private static void addTo(double[] sum, int offset, Vector vec, double weight) {
+    if (vec.isDense()) {
+      for (int i = 0; i < vec.size(); i++) {
+        sum[offset + i] += weight * vec.getQuick(i);
+      }
+    } else {
+      Iterator<Vector.Element> iter = vec.iterateNonZero();
+      while (iter.hasNext()) {
+        Vector.Element e = iter.next();
+        sum[offset + e.index()] += weight * e.get();
+      }
+    }
+  }
+  
+  private static class LloydsIteration {
+    private final List<Centers> centers;
+    private final List<Double> costs;
+    private final double maxShift;
+    private final List<MLClusterCovariance> covariances;
+    
+    LloydsIteration(List<Centers> centers, List<Double> costs, double maxShift,
+        List<MLClusterCovariance> covariances) {
+      this.centers = centers;
+      this.costs = costs;
+      this.maxShift = maxShift;
+      this.covariances = covariances;
+    }
+  }
+  
+  private static class LloydsCenters extends PObjectImpl<Pair<Pair<Integer, Integer>, Pair<Vector, Long>>, LloydsIteration> {
 
-    private final int numCenters;
+    private final List<Centers> previous;
+    private final CentersIndex index;
     
-    LloydsCenters(PTable<Pair<Integer, Integer>, Pair<V, Long>> collect, int numCenters) {
+    LloydsCenters(PTable<Pair<Integer, Integer>, Pair<Vector, Long>> collect, List<Centers> previous,
+        CentersIndex index) {
       super(collect);
-      this.numCenters = numCenters;
+      this.previous = previous;
+      this.index = index;
     }
 
     @Override
-    protected List<Centers> process(Iterable<Pair<Pair<Integer, Integer>, Pair<V, Long>>> values) {
+    protected LloydsIteration process(Iterable<Pair<Pair<Integer, Integer>, Pair<Vector, Long>>> values) {
+      int numCenters = previous.size();
       List<Centers> centers = Lists.newArrayListWithExpectedSize(numCenters);
+      List<Double> costs = Lists.newArrayListWithExpectedSize(numCenters);
       for (int i = 0; i < numCenters; i++) {
         centers.add(new Centers());
+        costs.add(0.0);
       }
-      for (Pair<Pair<Integer, Integer>, Pair<V, Long>> p : values) {
+      double maxShift = 0.0;
+      Map<Pair<Integer, Integer>, Vector> means = Maps.newHashMap();
+      // The position of each old center's mean in the new centers
+      Map<Pair<Integer, Integer>, Integer> positions = Maps.newHashMap();
+      List<Pair<Pair<Integer, Integer>, Pair<Vector, Long>>> moments = Lists.newArrayList();
+      for (Pair<Pair<Integer, Integer>, Pair<Vector, Long>> p : values) {
         int centerId = p.first().first();
-        Vector c = p.second().first().divide(p.second().second()); 
-        centers.set(centerId, centers.get(centerId).extendWith(c));
+        int pointId = p.first().second();
+        if (pointId == LloydsMapFn.COST_ID) {
+          costs.set(centerId, p.second().first().get(0));
+        } else if (pointId <= LloydsMapFn.MOMENTS_ID_BASE) {
+          moments.add(p);
+        } else {
+          Vector c = p.second().first().divide(p.second().second()); 
+          Centers current = centers.get(centerId);
+          Centers extended = current.extendWith(c);
+          // A mean that is identical to an earlier one is dropped, and shares its position
+          positions.put(p.first(), extended.size() > current.size() ? current.size()
+              : current.indexOf(c));
+          centers.set(centerId, extended);
+          double shift = Math.sqrt(c.getDistanceSquared(previous.get(centerId).get(pointId)));
+          maxShift = Math.max(maxShift, shift);
+          means.put(p.first(), c);
+        }
       }
-      return centers;
+      
+      List<MLClusterCovariance> covariances = null;
+      if (!moments.isEmpty()) {
+        List<List<Vector>> origins = Lists.newArrayList();
+        for (int i = 0; i < numCenters; i++) {
+          origins.add(index.getPoints(i));
+        }
+        Map<Pair<Integer, Integer>, MLClusterCovariance> byCenter = Maps.newTreeMap();
+        for (Pair<Pair<Integer, Integer>, Pair<Vector, Long>> p : moments) {
+          int centerId = p.first().first();
+          Pair<Integer, Integer> key = Pair.of(centerId,
+              LloydsMapFn.MOMENTS_ID_BASE - p.first().second());
+          Pair<Integer, Integer> position = Pair.of(centerId, positions.get(key));
+          MLClusterCovariance cov = toCovariance(centerId, position.second(), means.get(key),
+              origins.get(centerId).get(key.second()), p.second().first(), p.second().second());
+          MLClusterCovariance existing = byCenter.get(position);
+          if (existing != null) {
+            LOG.info(String.format("Pooling the covariances of clusters with identical means"
+                + " at center %d of clustering %d", position.second(), centerId));
+            cov = pool(existing, cov);
+          }
+          byCenter.put(position, cov);
+        }
+        covariances = Lists.newArrayList(byCenter.values());
+      }
+      return new LloydsIteration(centers, costs, maxShift, covariances);
+    }
+    
+    /**
+     * Converts the sums of the outer products of the offsets of {@code n} points from
+     * {@code origin} into their covariance around their {@code mean}.
+     */
+    private static MLClusterCovariance toCovariance(int clusteringId, int centerId, Vector mean,
+        Vector origin, Vector moments, long n) {
+      int dims = mean.size();
+      double[] shift = new double[dims];
+      List<Double> means = Lists.newArrayListWithCapacity(dims);
+      for (int a = 0; a < dims; a++) {
+        shift[a] = mean.getQuick(a) - origin.getQuick(a);
+        means.add(mean.getQuick(a));
+      }
+      List<MLMatrixEntry> entries = Lists.newArrayList();
+      int k = 0;
+      for (int a = 0; a < dims; a++) {
+        for (int b = a; b < dims; b++) {
+          double cov = moments.getQuick(k++) / n - shift[a] * shift[b];
+          if (cov != 0.0) {
+            entries.add(MLMatrixEntry.newBuilder().setRow(a).setColumn(b).setValue(cov).build());
+          }
+        }
+      }
+      return MLClusterCovariance.newBuilder()
+          .setClusteringId(clusteringId)
+          .setCenterId(centerId)
+          .setMeans(means)
+          .setCount(n)
+          .setCov(entries)
+          .build();
+    }
+    
+    /**
+     * Combines the covariances of two clusters that have the same mean, which is just the
+     * average of their covariances weighted by the number of points in each.
+     */
+    private static MLClusterCovariance pool(MLClusterCovariance a, MLClusterCovariance b) {
+      long n = a.getCount() + b.getCount();
+      Map<Pair<Integer, Integer>, Double> sums = Maps.newTreeMap();
+      for (MLClusterCovariance c : ImmutableList.of(a, b)) {
+        for (MLMatrixEntry e : c.getCov()) {
+          Pair<Integer, Integer> cell = Pair.of(e.getRow(), e.getColumn());
+          Double sum = sums.get(cell);
+          sums.put(cell, (sum == null ? 0.0 : sum) + c.getCount() * e.getValue());
+        }
+      }
+      List<MLMatrixEntry> entries = Lists.newArrayList();
+      for (Map.Entry<Pair<Integer, Integer>, Double> e : sums.entrySet()) {
+        entries.add(MLMatrixEntry.newBuilder().setRow(e.getKey().first())
+            .setColumn(e.getKey().second()).setValue(e.getValue() / n).build());
+      }
+      return MLClusterCovariance.newBuilder(a).setCount(n).setCov(entries).build();
     }
   }
   
-  private static class ScoringFn<V extends Vector> extends DoFn<Pair<Integer, V>, Pair<Integer, Pair<V, Double>>> {
+  /**
+   * Scores each point by its squared distance to the closest candidate center in its fold.
+   *
+   * <p>The score of a weighted point is its squared distance times its weight, i.e., the total
+   * score of the copies of the point that it stands for.
+   *
+   * <p>By default every point with a positive score is emitted for the weighted reservoir
+   * sample. If the per-fold costs {@code phi} from a previous pass are given, each point is
+   * instead kept independently with probability {@code min(1, oversample * d^2 / phi)}, as in
+   * the k-means|| paper, and only the kept points are emitted.
+   *
+   * <p>When {@code countClosest} is set or {@code phi} is given, it also emits a summary record
+   * for each fold under the key {@code SUMMARY_KEY_BASE - fold} when the task completes, whose
+   * value is the vector of the number of points closest to each candidate (empty unless
+   * {@code countClosest} is set) paired with the total cost of the fold's points.
+   */
+  private static class ScoringFn extends
+      DoFn<Pair<Integer, Weighted<Vector>>, Pair<Integer, Pair<Weighted<Vector>, Double>>> {
+    static final int SUMMARY_KEY_BASE = -1;
+    
     private final CentersIndex centers;
+    private final boolean countClosest;
+    private final double[] phi;
+    private final double oversample;
+    private final Long seed;
+    private transient Distances distances;
+    private transient long[][] counts;
+    private transient double[] costs;
+    private transient Random random;
     
-    private ScoringFn(CentersIndex centers) {
+    private ScoringFn(CentersIndex centers, boolean countClosest) {
+      this(centers, countClosest, null, 0.0, null);
+    }
+    
+    private ScoringFn(CentersIndex centers, boolean countClosest, double[] phi, double oversample,
+        Long seed) {
       this.centers = centers;
+      this.countClosest = countClosest;
+      this.phi = phi;
+      this.oversample = oversample;
+      this.seed = seed;
+    }
+    
+    @Override
+    public void initialize() {
+      distances = centers.newDistances();
+      int[] numPoints = centers.getPointsPerCluster();
+      counts = new long[numPoints.length][];
+      for (int i = 0; i < numPoints.length; i++) {
+        counts[i] = new long[countClosest ? numPoints[i] : 0];
+      }
+      costs = new double[numPoints.length];
+      if (phi != null) {
+        random = seed == null ? new Random() : new Random(seed ^ ((long) taskId() << 32));
+      }
     }
     
     @Override
-    public void process(Pair<Integer, V> in, Emitter<Pair<Integer, Pair<V, Double>>> emitter) {
-      Distances d = centers.getDistances(in.second(), true);
-      double dist = d.clusterDistances[in.first()];
+    public void process(Pair<Integer, Weighted<Vector>> in,
+        Emitter<Pair<Integer, Pair<Weighted<Vector>, Double>>> emitter) {
+      int fold = in.first();
+      Weighted<Vector> wv = in.second();
+      Distances d = centers.getDistance(wv.thing(), fold, true, distances);
+      double dist = wv.weight() * d.clusterDistances[fold];
       if (dist > 0.0) {
-        emitter.emit(Pair.of(in.first(), Pair.of(in.second(), dist)));
+        if (phi == null) {
+          emitter.emit(Pair.of(fold, Pair.of(wv, dist)));
+        } else if (phi[fold] > 0.0
+            && random.nextDouble() < keepProbability(wv.weight(), dist, phi[fold])) {
+          emitter.emit(Pair.of(fold, Pair.of(wv, dist)));
+        }
       }
+      if (countClosest) {
+        counts[fold][d.closestPoints[fold]] += multiplicity(wv);
+      }
+      costs[fold] += dist;
+    }
+    
+    /**
+     * Returns the id of this task, which is mixed into the seed so that the splits don't all
+     * draw the same sequence, or zero (leaving the seed as it was configured) when the task
+     * has no attempt id, e.g., when it runs in memory.
+     */
+    private int taskId() {
+      TaskInputOutputContext<?, ?, ?, ?> context = getContext();
+      if (context == null || context.getTaskAttemptID() == null
+          || context.getTaskAttemptID().getTaskID() == null) {
+        return 0;
+      }
+      return context.getTaskAttemptID().getTaskID().getId();
+    }
+    
+    /**
+     * The probability of keeping a point of the given weight whose weighted cost is {@code dist},
+     * which is the chance that at least one of its {@code weight} copies would have been kept.
+     */
+    private double keepProbability(double weight, double dist, double phi) {
+      if (weight == 1.0) {
+        return oversample * dist / phi;
+      }
+      double p = Math.min(1.0, oversample * dist / (weight * phi));
+      return 1.0 - Math.pow(1.0 - p, weight);
+    }
+    
+    @Override
+    public void cleanup(Emitter<Pair<Integer, Pair<Weighted<Vector>, Double>>> emitter) {
+      distances.reportFallbacks(getContext());
+      if (countClosest || phi != null) {
+        for (int i = 0; i < counts.length; i++) {
+          double[] c = new double[counts[i].length];
+          for (int j = 0; j < c.length; j++) {
+            c[j] = counts[i][j];
+          }
+          emitter.emit(Pair.of(SUMMARY_KEY_BASE - i,
+              Pair.of(new Weighted<Vector>(Vectors.of(c)), costs[i])));
+        }
+      }
+    }
+  }
+  
+  private static class DropScoreFn extends
+      MapFn<Pair<Integer, Pair<Weighted<Vector>, Double>>, Pair<Integer, Weighted<Vector>>> {
+    @Override
+    public Pair<Integer, Weighted<Vector>> map(Pair<Integer, Pair<Weighted<Vector>, Double>> input) {
+      return Pair.of(input.first(), input.second().first());
+    }
+  }
+  
+  private static class ScoredPointsFilter extends FilterFn<Pair<Integer, Pair<Weighted<Vector>, Double>>> {
+    private final boolean scored;
+    
+    private ScoredPointsFilter(boolean scored) {
+      this.scored = scored;
+    }
+    
+    @Override
+    public boolean accept(Pair<Integer, Pair<Weighted<Vector>, Double>> input) {
+      return (input.first() >= 0) == scored;
     }
   }
   
-  private static class ClosestCenterFn<V extends Vector> extends DoFn<Pair<Integer, V>, Pair<Integer, Integer>> {
+  private static class ClosestCenterFn extends
+      DoFn<Pair<Integer, Weighted<Vector>>, Pair<Pair<Integer, Integer>, Long>> {
     private final CentersIndex centers;
+    private transient Distances distances;
     
     private ClosestCenterFn(CentersIndex centers) {
       this.centers = centers;
     }
 
     @Override
-    public void process(Pair<Integer, V> in, Emitter<Pair<Integer, Integer>> emitter) {
-      Distances d = centers.getDistances(in.second(), true);
-      emitter.emit(Pair.of(in.first(), d.closestPoints[in.first()]));
+    public void initialize() {
+      distances = centers.newDistances();
+    }
+
+    @Override
+    public void process(Pair<Integer, Weighted<Vector>> in,
+        Emitter<Pair<Pair<Integer, Integer>, Long>> emitter) {
+      Distances d = centers.getDistance(in.second().thing(), in.first(), true, distances);
+      emitter.emit(Pair.of(Pair.of(in.first(), d.closestPoints[in.first()]),
+          multiplicity(in.second())));
+    }
+
+    @Override
+    public void cleanup(Emitter<Pair<Pair<Integer, Integer>, Long>> emitter) {
+      distances.reportFallbacks(getContext());
     }
   }
   
   private static class AssignedCenterFn<V extends NamedVector> extends DoFn<V, Record> {
     private final CentersIndex centers;
     private final List<Integer> clusterIds;
+    private final boolean approx;
+    private transient Distances distances;
+    private transient VectorBlock<V> block;
     
-    private AssignedCenterFn(CentersIndex centers, List<Integer> clusterIds) {
+    private AssignedCenterFn(CentersIndex centers, List<Integer> clusterIds, boolean approx) {
       this.centers = centers;
       this.clusterIds = clusterIds;
+      this.approx = approx;
+    }
+
+    @Override
+    public void initialize() {
+      if (approx) {
+        distances = centers.newDistances();
+      } else {
+        block = new VectorBlock<V>(centers, VectorBlock.DEFAULT_SIZE);
+      }
     }
 
     @Override
     public void process(V vec, Emitter<Record> emitter) {
+      if (block == null) {
+        emit(vec, centers.getDistances(vec, approx, distances), emitter);
+      } else if (block.add(vec)) {
+        flush(emitter);
+      }
+    }
+    
+    @Override
+    public void cleanup(Emitter<Record> emitter) {
+      if (distances != null) {
+        distances.reportFallbacks(getContext());
+      }
+      if (block != null) {
+        flush(emitter);
+      }
+    }
+    
+    private void flush(Emitter<Record> emitter) {
+      centers.getDistances(block, approx);
+      for (int b = 0; b < block.size(); b++) {
+        emit(block.get(b), block.distances(b), emitter);
+      }
+      block.clear();
+    }
+    
+    private void emit(V vec, Distances d, Emitter<Record> emitter) {
       MLVector mlvec = VectorConvert.fromVector(vec);
-      Distances d = centers.getDistances(vec, false);
       for (int i = 0; i < d.closestPoints.length; i++) {
         Record r = new SimpleRecord(ASSIGNMENT_SPEC);
         r.set("vector_id", mlvec.getId().toString())
@@ -442,10 +1667,19 @@ public class KMeansParallel {
     }
   }
 
-  private static class CenterCostFn<V extends Vector> extends DoFn<V, Pair<Integer, Double>> {
+  private static class WeighFn<V extends Vector> extends MapFn<V, Weighted<Vector>> {
+    @Override
+    public Weighted<Vector> map(V vec) {
+      return new Weighted<Vector>(vec);
+    }
+  }
+  
+  private static class CenterCostFn extends DoFn<Weighted<Vector>, Pair<Integer, Double>> {
     private final CentersIndex centers;
     private final double[] currentCosts;
     private final boolean approx;
+    private transient Distances distances;
+    private transient VectorBlock<Vector> block;
     
     private CenterCostFn(CentersIndex centers, boolean approx) {
       this.centers = centers;
@@ -456,18 +1690,44 @@ public class KMeansParallel {
     @Override
     public void initialize() {
       Arrays.fill(currentCosts, 0.0);
+      if (approx) {
+        distances = centers.newDistances();
+      } else {
+        block = new VectorBlock<Vector>(centers, VectorBlock.DEFAULT_SIZE);
+      }
     }
     
     @Override
-    public void process(V vec, Emitter<Pair<Integer, Double>> emitter) {
-      Distances d = centers.getDistances(vec, approx);
+    public void process(Weighted<Vector> wv, Emitter<Pair<Integer, Double>> emitter) {
+      if (block == null) {
+        add(wv.weight(), centers.getDistances(wv.thing(), approx, distances));
+      } else if (block.add(wv.thing(), wv.weight())) {
+        flush();
+      }
+    }
+    
+    private void flush() {
+      centers.getDistances(block, approx);
+      for (int b = 0; b < block.size(); b++) {
+        add(block.weight(b), block.distances(b));
+      }
+      block.clear();
+    }
+    
+    private void add(double weight, Distances d) {
       for (int i = 0; i < currentCosts.length; i++) {
-        currentCosts[i] += d.clusterDistances[i];
+        currentCosts[i] += weight * d.clusterDistances[i];
       }
     }
     
     @Override
     public void cleanup(Emitter<Pair<Integer, Double>> emitter) {
+      if (distances != null) {
+        distances.reportFallbacks(getContext());
+      }
+      if (block != null) {
+        flush();
+      }
       for (int i = 0; i < currentCosts.length; i++) {
         emitter.emit(Pair.of(i, currentCosts[i]));
       }
@@ -478,6 +1738,8 @@ public class KMeansParallel {
     private final CentersIndex centers;
     private final List<Integer> clusterIds;
     private final boolean approx;
+    private transient Distances distances;
+    private transient VectorBlock<V> block;
 
     public CovarianceCentersFn(CentersIndex centers, List<Integer> clusterIds, boolean approx) {
       this.centers = centers;
@@ -485,9 +1747,43 @@ public class KMeansParallel {
       this.approx = approx;
     }
 
+    @Override
+    public void initialize() {
+      if (approx) {
+        distances = centers.newDistances();
+      } else {
+        block = new VectorBlock<V>(centers, VectorBlock.DEFAULT_SIZE);
+      }
+    }
+
     @Override
     public void process(V vec, Emitter<Pair<ClusterKey, V>> emitter) {
-      Distances d = centers.getDistances(vec, approx);
+      if (block == null) {
+        emit(vec, centers.getDistances(vec, approx, distances), emitter);
+      } else if (block.add(vec)) {
+        flush(emitter);
+      }
+    }
+
+    @Override
+    public void cleanup(Emitter<Pair<ClusterKey, V>> emitter) {
+      if (distances != null) {
+        distances.reportFallbacks(getContext());
+      }
+      if (block != null) {
+        flush(emitter);
+      }
+    }
+
+    private void flush(Emitter<Pair<ClusterKey, V>> emitter) {
+      centers.getDistances(block, approx);
+      for (int b = 0; b < block.size(); b++) {
+        emit(block.get(b), block.distances(b), emitter);
+      }
+      block.clear();
+    }
+
+    private void emit(V vec, Distances d, Emitter<Pair<ClusterKey, V>> emitter) {
       for (int i = 0; i < d.closestPoints.length; i++) {
         ClusterKey key = new ClusterKey(getClusterId(i, clusterIds), d.closestPoints[i]);
         emitter.emit(Pair.of(key, vec));
@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import java.util.List;
+
+import com.cloudera.science.ml.avro.MLClusterCovariance;
+import com.cloudera.science.ml.core.vectors.Centers;
+
+/**
+ * The output of running Lloyd's algorithm via {@link KMeansParallel}: the final centers, along
+ * with the cost of each clustering that was computed during each iteration.
+ */
+public class LloydsResult {
+  private final List<Centers> centers;
+  private final List<List<Double>> costs;
+  private final boolean converged;
+  private final List<MLClusterCovariance> covariances;
+
+  public LloydsResult(List<Centers> centers, List<List<Double>> costs, boolean converged) {
+    this(centers, costs, converged, null);
+  }
+
+  public LloydsResult(List<Centers> centers, List<List<Double>> costs, boolean converged,
+      List<MLClusterCovariance> covariances) {
+    this.centers = centers;
+    this.costs = costs;
+    this.converged = converged;
+    this.covariances = covariances;
+  }
+
+  /**
+   * Returns the centers at the end of the last iteration that was run.
+   */
+  public List<Centers> getCenters() {
+    return centers;
+  }
+
+  /**
+   * Returns the cost of each clustering for each iteration that was run, where the cost
+   * for an iteration is the sum of the squared distances from each point to its closest
+   * center at the start of that iteration.
+   */
+  public List<List<Double>> getCosts() {
+    return costs;
+  }
+
+  /**
+   * Returns the number of iterations that were run.
+   */
+  public int getNumIterations() {
+    return costs.size();
+  }
+
+  /**
+   * Returns true if the iterations were stopped early because the centers converged.
+   */
+  public boolean isConverged() {
+    return converged;
+  }
+
+  /**
+   * Returns the covariance of the points assigned to each of the final centers, in the same
+   * format as {@link KMeansParallel#computeClusterCovarianceMatrix}, or null unless the fused
+   * covariance option was set.
+   */
+  public List<MLClusterCovariance> getCovariances() {
+    return covariances;
+  }
+}
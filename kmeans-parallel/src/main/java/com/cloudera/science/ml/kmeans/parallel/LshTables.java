@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import java.util.Arrays;
+
+/**
+ * Hash tables that bucket the centers of a single clustering by slices of their packed
+ * projection signatures, so that the approximate lookups in {@link CentersIndex} only need to
+ * look at the centers that share a bucket with the query in at least one of the tables.
+ *
+ * <p>Table {@code t} is keyed by the signature bits {@code [t * tableBits, (t + 1) * tableBits)},
+ * and each bucket is a chain of center indices threaded through a per-table {@code next} array,
+ * so centers can be appended without rebuilding the existing buckets.
+ */
+class LshTables {
+  private final int numTables;
+  private final int tableBits;
+  private final int[][] heads;
+  private final int[][] next;
+  private int size;
+
+  LshTables(int numTables, int tableBits) {
+    this.numTables = numTables;
+    this.tableBits = tableBits;
+    this.heads = new int[numTables][];
+    this.next = new int[numTables][];
+    for (int t = 0; t < numTables; t++) {
+      heads[t] = new int[1 << tableBits];
+      Arrays.fill(heads[t], -1);
+      next[t] = new int[0];
+    }
+  }
+
+  /**
+   * Returns the number of centers that have been added to the tables.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Adds the centers from {@link #size()} up to (but not including) {@code numSignatures} to the
+   * buckets of each table.
+   */
+  void update(long[] signatures, int signatureWords, int numSignatures) {
+    if (numSignatures <= size) {
+      return;
+    }
+    for (int t = 0; t < numTables; t++) {
+      if (next[t].length < numSignatures) {
+        next[t] = Arrays.copyOf(next[t], Math.max(numSignatures, 2 * next[t].length));
+      }
+      for (int j = size; j < numSignatures; j++) {
+        int key = key(signatures, j * signatureWords, t);
+        next[t][j] = heads[t][key];
+        heads[t][key] = j;
+      }
+    }
+    size = numSignatures;
+  }
+
+  /**
+   * Returns the bucket key of the signature at the given offset in table {@code t}.
+   */
+  int key(long[] signatures, int offset, int t) {
+    return key(signatures, offset, t * tableBits, tableBits);
+  }
+
+  /**
+   * Returns the {@code tableBits} signature bits starting at bit {@code start} of the
+   * signature at the given offset as a bucket key.
+   */
+  static int key(long[] signatures, int offset, int start, int tableBits) {
+    int key = 0;
+    for (int k = 0; k < tableBits; k++) {
+      int bit = start + k;
+      if ((signatures[offset + bit / Long.SIZE] & (1L << (bit % Long.SIZE))) != 0) {
+        key |= 1 << k;
+      }
+    }
+    return key;
+  }
+
+  /**
+   * Returns the first center in the bucket of table {@code t} with the given key, or -1 if
+   * the bucket is empty.
+   */
+  int first(int t, int key) {
+    return heads[t][key];
+  }
+
+  /**
+   * Returns the center that follows the given one in its bucket of table {@code t}, or -1 if
+   * it is the last one.
+   */
+  int next(int t, int center) {
+    return next[t][center];
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+
+/**
+ * The centers of a single clustering in {@link CentersIndex}, stored in compressed sparse row
+ * form: the nonzero entries of center {@code j} are at positions
+ * {@code [rowStart[j], rowStart[j + 1])} of the parallel {@code indices} and {@code values}
+ * arrays, sorted by dimension. Memory use is proportional to the number of nonzeros rather
+ * than to the dimensionality.
+ */
+class SparseCenters implements Serializable {
+  private int[] rowStart = new int[1];
+  private int[] indices = new int[0];
+  private double[] values = new double[0];
+  private int size;
+
+  /**
+   * Returns the number of centers that have been added.
+   */
+  int size() {
+    return size;
+  }
+
+  int start(int center) {
+    return rowStart[center];
+  }
+
+  int end(int center) {
+    return rowStart[center + 1];
+  }
+
+  int index(int position) {
+    return indices[position];
+  }
+
+  double value(int position) {
+    return values[position];
+  }
+
+  void add(Vector vec) {
+    int nnz = vec.getNumNondefaultElements();
+    int n = rowStart[size];
+    if (n + nnz > indices.length) {
+      int capacity = Math.max(n + nnz, 2 * indices.length);
+      indices = Arrays.copyOf(indices, capacity);
+      values = Arrays.copyOf(values, capacity);
+    }
+    if (vec.isDense()) {
+      for (int i = 0; i < vec.size(); i++) {
+        double v = vec.getQuick(i);
+        if (v != 0.0) {
+          indices[n] = i;
+          values[n] = v;
+          n++;
+        }
+      }
+    } else {
+      int first = n;
+      Iterator<Vector.Element> iter = vec.iterateNonZero();
+      while (iter.hasNext()) {
+        Vector.Element e = iter.next();
+        if (e.get() != 0.0) {
+          indices[n++] = e.index();
+        }
+      }
+      // Sparse vectors may iterate in hash order, so sort the dimensions and look up the values
+      Arrays.sort(indices, first, n);
+      for (int k = first; k < n; k++) {
+        values[k] = vec.getQuick(indices[k]);
+      }
+    }
+    if (size + 2 > rowStart.length) {
+      rowStart = Arrays.copyOf(rowStart, Math.max(4, 2 * rowStart.length));
+    }
+    size++;
+    rowStart[size] = n;
+  }
+
+  /**
+   * Returns the dot product of the given vector with the given center.
+   */
+  double dot(Vector vec, int center) {
+    double dot = 0.0;
+    for (int k = rowStart[center]; k < rowStart[center + 1]; k++) {
+      dot += values[k] * vec.getQuick(indices[k]);
+    }
+    return dot;
+  }
+
+  /**
+   * Writes the centers without the spare capacity of the arrays.
+   */
+  void write(DataOutput out) throws IOException {
+    out.writeInt(size);
+    for (int j = 0; j <= size; j++) {
+      out.writeInt(rowStart[j]);
+    }
+    for (int k = 0; k < rowStart[size]; k++) {
+      out.writeInt(indices[k]);
+      out.writeDouble(values[k]);
+    }
+  }
+  
+  static SparseCenters read(DataInput in) throws IOException {
+    SparseCenters sc = new SparseCenters();
+    sc.size = in.readInt();
+    sc.rowStart = new int[sc.size + 1];
+    for (int j = 0; j <= sc.size; j++) {
+      sc.rowStart[j] = in.readInt();
+    }
+    int nnz = sc.rowStart[sc.size];
+    sc.indices = new int[nnz];
+    sc.values = new double[nnz];
+    for (int k = 0; k < nnz; k++) {
+      sc.indices[k] = in.readInt();
+      sc.values[k] = in.readDouble();
+    }
+    return sc;
+  }
+  
+  Vector get(int center, int dimensions) {
+    Vector v = new RandomAccessSparseVector(dimensions, rowStart[center + 1] - rowStart[center]);
+    for (int k = rowStart[center]; k < rowStart[center + 1]; k++) {
+      v.setQuick(indices[k], values[k]);
+    }
+    return v;
+  }
+}
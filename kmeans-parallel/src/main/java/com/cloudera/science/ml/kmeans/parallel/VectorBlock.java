@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import java.util.Iterator;
+
+import org.apache.mahout.math.Vector;
+
+import com.cloudera.science.ml.kmeans.parallel.CentersIndex.Distances;
+
+/**
+ * A buffer of input vectors that a {@code DoFn} fills up and then passes to
+ * {@link CentersIndex#getDistances(VectorBlock, boolean)}, so that exact lookups can stream each
+ * tile of the centers through the cache once per block instead of once per vector. The
+ * {@code DoFn} should process the results and {@link #clear()} the block whenever
+ * {@link #add(Vector)} reports that it is full, and process any remaining vectors in
+ * {@code cleanup}.
+ */
+class VectorBlock<V extends Vector> {
+  static final int DEFAULT_SIZE = 256;
+
+  private final Object[] vectors;
+  private final Distances[] distances;
+  private final double[] dense;
+  private final double[] lengthSquared;
+  private final double[] weights;
+  private final int dimensions;
+  private int size;
+
+  VectorBlock(CentersIndex centers, int capacity) {
+    this.vectors = new Object[capacity];
+    this.distances = new Distances[capacity];
+    for (int i = 0; i < capacity; i++) {
+      distances[i] = centers.newDistances();
+    }
+    this.dimensions = centers.getDimensions();
+    // Only the blocked exact kernel reads the dense copies of the vectors
+    this.dense = centers.hasBlockKernel() ? new double[capacity * dimensions] : null;
+    this.lengthSquared = new double[capacity];
+    this.weights = new double[capacity];
+  }
+
+  /**
+   * Adds a vector to the block, returning true if the block is now full.
+   */
+  boolean add(V vec) {
+    return add(vec, 1.0);
+  }
+
+  /**
+   * Adds a vector that stands for {@code weight} copies of itself to the block, returning true
+   * if the block is now full.
+   */
+  boolean add(V vec, double weight) {
+    vectors[size] = vec;
+    weights[size] = weight;
+    lengthSquared[size] = vec.getLengthSquared();
+    int offset = size * dimensions;
+    if (dense != null) {
+      if (vec.isDense()) {
+        for (int k = 0; k < dimensions; k++) {
+          dense[offset + k] = vec.getQuick(k);
+        }
+      } else {
+        for (int k = 0; k < dimensions; k++) {
+          dense[offset + k] = 0.0;
+        }
+        Iterator<Vector.Element> iter = vec.iterateNonZero();
+        while (iter.hasNext()) {
+          Vector.Element e = iter.next();
+          dense[offset + e.index()] = e.get();
+        }
+      }
+    }
+    size++;
+    return size == vectors.length;
+  }
+
+  int size() {
+    return size;
+  }
+
+  @SuppressWarnings("unchecked")
+  V get(int i) {
+    return (V) vectors[i];
+  }
+
+  /**
+   * Returns the result of the last lookup for the {@code i}th vector in the block.
+   */
+  Distances distances(int i) {
+    return distances[i];
+  }
+
+  /**
+   * Returns the vectors in the block as the rows of a dense row-major array.
+   */
+  double[] dense() {
+    return dense;
+  }
+
+  double weight(int i) {
+    return weights[i];
+  }
+
+  double lengthSquared(int i) {
+    return lengthSquared[i];
+  }
+
+  void clear() {
+    for (int i = 0; i < size; i++) {
+      vectors[i] = null;
+    }
+    size = 0;
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import com.cloudera.science.ml.core.vectors.Vectors;
+import com.cloudera.science.ml.core.vectors.Weighted;
+import com.google.common.collect.Lists;
+
+public class CandidateReductionTest {
+
+  private final Random r = new Random(1729L);
+
+  private List<Weighted<Vector>> randomCandidates(int n, int dims) {
+    List<Weighted<Vector>> candidates = Lists.newArrayList();
+    for (int i = 0; i < n; i++) {
+      double[] d = new double[dims];
+      for (int k = 0; k < dims; k++) {
+        d[k] = r.nextGaussian();
+      }
+      candidates.add(new Weighted<Vector>(Vectors.of(d), 1 + r.nextInt(10)));
+    }
+    return candidates;
+  }
+
+  @Test
+  public void testKeptWeightsAreNearestSums() throws Exception {
+    List<Weighted<Vector>> candidates = randomCandidates(100, 3);
+    List<Weighted<Vector>> kept = CandidateReduction.reduce(candidates, 8, new Random(17L));
+    assertEquals(8, kept.size());
+
+    // Recompute the nearest kept point of every candidate by brute force, with ties going to
+    // the earliest kept point, and check that the kept weights are exactly those sums
+    double[] expected = new double[kept.size()];
+    for (Weighted<Vector> c : candidates) {
+      int nearest = 0;
+      double best = Double.POSITIVE_INFINITY;
+      for (int j = 0; j < kept.size(); j++) {
+        double d = c.thing().getDistanceSquared(kept.get(j).thing());
+        if (d < best) {
+          best = d;
+          nearest = j;
+        }
+      }
+      expected[nearest] += c.weight();
+    }
+    for (int j = 0; j < kept.size(); j++) {
+      assertEquals(expected[j], kept.get(j).weight(), 0.0);
+      // Every kept point is one of the original candidates
+      boolean found = false;
+      for (Weighted<Vector> c : candidates) {
+        found |= c.thing() == kept.get(j).thing();
+      }
+      assertTrue(found);
+    }
+  }
+
+  @Test
+  public void testDuplicatesStopReduction() throws Exception {
+    List<Weighted<Vector>> candidates = Lists.newArrayList();
+    for (int i = 0; i < 6; i++) {
+      candidates.add(new Weighted<Vector>(Vectors.of(1.0, 2.0), 2.0));
+      candidates.add(new Weighted<Vector>(Vectors.of(3.0, 4.0), 1.0));
+    }
+    List<Weighted<Vector>> kept = CandidateReduction.reduce(candidates, 4, new Random(17L));
+    // Only two distinct points, so only two can be kept, and they take all of the weight
+    assertEquals(2, kept.size());
+    for (Weighted<Vector> wv : kept) {
+      assertEquals(wv.thing().get(0) == 1.0 ? 12.0 : 6.0, wv.weight(), 0.0);
+    }
+  }
+
+  @Test
+  public void testSmallCandidateSetIsUnchanged() throws Exception {
+    List<Weighted<Vector>> candidates = randomCandidates(5, 3);
+    assertSame(candidates, CandidateReduction.reduce(candidates, 5, new Random(17L)));
+  }
+}
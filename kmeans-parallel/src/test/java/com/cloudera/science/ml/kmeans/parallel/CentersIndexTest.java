@@ -0,0 +1,687 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.kmeans.parallel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import com.cloudera.science.ml.core.vectors.Centers;
+import com.cloudera.science.ml.core.vectors.DistanceKernel;
+import com.cloudera.science.ml.core.vectors.Vectors;
+import com.cloudera.science.ml.kmeans.parallel.CentersIndex.Distances;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+public class CentersIndexTest {
+
+  private final Random r = new Random(1729L);
+
+  private Vector randomVector(int dims) {
+    double[] d = new double[dims];
+    for (int i = 0; i < dims; i++) {
+      d[i] = r.nextGaussian();
+    }
+    return Vectors.of(d);
+  }
+
+  private List<Centers> randomCenters(int numClusterings, int numCenters, int dims) {
+    List<Centers> centers = Lists.newArrayList();
+    for (int i = 0; i < numClusterings; i++) {
+      List<Vector> points = Lists.newArrayList();
+      for (int j = 0; j < numCenters; j++) {
+        points.add(randomVector(dims));
+      }
+      centers.add(new Centers(points));
+    }
+    return centers;
+  }
+
+  @Test
+  public void testPackedHammingDistancesMatchBitSets() throws Exception {
+    int dims = 10;
+    // 100 bits spans two signature words with a partially filled final word
+    int bits = 100;
+    List<Centers> centers = randomCenters(1, 20, dims);
+    CentersIndex index = new CentersIndex(centers, bits, 5, 17L);
+    // The projection is regenerated from the seed in the same order as the index does
+    Random seeded = new Random(17L);
+    double[] projection = new double[dims * bits];
+    for (int i = 0; i < projection.length; i++) {
+      projection[i] = seeded.nextGaussian();
+    }
+    List<Vector> vecs = Lists.newArrayList(centers.get(0));
+    for (int i = 0; i < 20; i++) {
+      vecs.add(randomVector(dims));
+    }
+    List<BitSet> expected = Lists.newArrayList();
+    List<long[]> packed = Lists.newArrayList();
+    for (Vector v : vecs) {
+      BitSet signs = new BitSet(bits);
+      for (int j = 0; j < bits; j++) {
+        double prod = 0.0;
+        for (int k = 0; k < dims; k++) {
+          prod += v.getQuick(k) * projection[k + j * dims];
+        }
+        signs.set(j, prod > 0.0);
+      }
+      expected.add(signs);
+      packed.add(index.signature(v));
+    }
+    for (int a = 0; a < vecs.size(); a++) {
+      for (int b = 0; b < vecs.size(); b++) {
+        BitSet xor = (BitSet) expected.get(a).clone();
+        xor.xor(expected.get(b));
+        assertEquals(xor.cardinality(),
+            CandidateSelector.hammingDistance(packed.get(a), packed.get(b), 0));
+      }
+    }
+  }
+
+  @Test
+  public void testBoundsKeepNearlyTiedCenters() throws Exception {
+    int dims = 4;
+    // Pairs of centers far from the origin, so that |x|^2 + |c|^2 - 2 x.c loses most of its
+    // precision to cancellation, queried at points that are nearly tied between each pair
+    List<Vector> points = Lists.newArrayList();
+    List<Vector> vecs = Lists.newArrayList();
+    for (int c = 0; c < 16; c++) {
+      double[] mid = new double[dims];
+      for (int k = 0; k < dims; k++) {
+        mid[k] = 1.0e4 + 5.0 * c + k;
+      }
+      Vector offset = randomVector(dims).times(0.5);
+      points.add(Vectors.of(mid).minus(offset));
+      points.add(Vectors.of(mid).plus(offset));
+      for (int i = 0; i < 20; i++) {
+        vecs.add(Vectors.of(mid).plus(randomVector(dims).times(1e-7)));
+      }
+    }
+    List<Centers> centers = ImmutableList.of(new Centers(points));
+    CentersIndex index = new CentersIndex(centers);
+    VectorBlock<Vector> block = new VectorBlock<Vector>(index, vecs.size());
+    for (Vector v : vecs) {
+      block.add(v);
+    }
+    index.getDistances(block, false);
+    DistanceKernel kernel = DistanceKernel.get();
+    for (int b = 0; b < vecs.size(); b++) {
+      Vector v = vecs.get(b);
+      // A plain scan of every center, with the same arithmetic as the index
+      double[] q = Vectors.toArray(v);
+      double best = Double.POSITIVE_INFINITY;
+      int closest = 0;
+      for (int j = 0; j < points.size(); j++) {
+        Vector c = centers.get(0).get(j);
+        double d = v.getLengthSquared() + c.getLengthSquared()
+            - 2 * kernel.dot(q, 0, Vectors.toArray(c), 0, dims);
+        if (d < best) {
+          best = d;
+          closest = j;
+        }
+      }
+      Distances single = index.getDistances(v, false);
+      assertEquals(closest, single.closestPoints[0]);
+      assertEquals(best, single.clusterDistances[0], 0.0);
+      assertEquals(closest, block.distances(b).closestPoints[0]);
+      assertEquals(best, block.distances(b).clusterDistances[0], 0.0);
+    }
+  }
+
+  @Test
+  public void testApproxIsDeterministicForSeed() throws Exception {
+    List<Centers> centers = randomCenters(3, 40, 10);
+    // 100 bits spans two signature words with a partially filled final word
+    CentersIndex first = new CentersIndex(centers, 100, 5, 17L);
+    CentersIndex second = new CentersIndex(centers, 100, 5, 17L);
+    for (int i = 0; i < 50; i++) {
+      Vector v = randomVector(10);
+      Distances exact = first.getDistances(v, false);
+      Distances d1 = first.getDistances(v, true);
+      Distances d2 = second.getDistances(v, true);
+      assertArrayEquals(d1.closestPoints, d2.closestPoints);
+      for (int c = 0; c < centers.size(); c++) {
+        assertTrue(d1.clusterDistances[c] >= exact.clusterDistances[c] - 1e-9);
+        assertEquals(centers.get(c).get(d1.closestPoints[c]).getDistanceSquared(v),
+            d1.clusterDistances[c], 1e-9);
+      }
+    }
+  }
+
+  @Test
+  public void testApproxMatchesExactWhenAllCentersSampled() throws Exception {
+    List<Centers> centers = randomCenters(3, 20, 10);
+    CentersIndex index = new CentersIndex(centers, 100, 20, 17L);
+    for (int i = 0; i < 50; i++) {
+      Vector v = randomVector(10);
+      Distances exact = index.getDistances(v, false);
+      Distances approx = index.getDistances(v, true);
+      assertArrayEquals(exact.closestPoints, approx.closestPoints);
+      assertArrayEquals(exact.clusterDistances, approx.clusterDistances, 1e-9);
+    }
+  }
+
+  @Test
+  public void testSingleClusteringLookups() throws Exception {
+    List<Centers> centers = randomCenters(4, 50, 6);
+    CentersIndex index = new CentersIndex(centers, 64, 8, 5L);
+    Distances single = index.newDistances();
+    for (int i = 0; i < 50; i++) {
+      Vector v = randomVector(6);
+      for (boolean approx : new boolean[] { false, true }) {
+        Distances all = index.getDistances(v, approx);
+        for (int c = 0; c < centers.size(); c++) {
+          index.getDistance(v, c, approx, single);
+          assertEquals(all.closestPoints[c], single.closestPoints[c]);
+          assertEquals(all.clusterDistances[c], single.clusterDistances[c], 0.0);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testIncrementalIndexMatchesFullIndex() throws Exception {
+    List<Centers> centers = randomCenters(2, 60, 8);
+    CentersIndex full = new CentersIndex(centers, 64, 5, 29L);
+    CentersIndex incremental = new CentersIndex(2, 8, 64, 5, 29L);
+    for (int batch = 0; batch < 3; batch++) {
+      for (int c = 0; c < centers.size(); c++) {
+        for (int j = 20 * batch; j < 20 * (batch + 1); j++) {
+          incremental.add(centers.get(c).get(j), c);
+        }
+      }
+      // Force the signatures of each batch to be computed before the next one is added
+      incremental.getDistances(randomVector(8), true);
+    }
+    for (int i = 0; i < 50; i++) {
+      Vector v = randomVector(8);
+      assertArrayEquals(full.getDistances(v, true).closestPoints,
+          incremental.getDistances(v, true).closestPoints);
+    }
+  }
+
+  @Test
+  public void testMultiTableLookupsFindNearbyCenters() throws Exception {
+    List<Centers> centers = randomCenters(2, 500, 10);
+    CentersIndex index = new CentersIndex(centers, 64, 10, 8, 3, 31L);
+    int matches = 0;
+    for (int i = 0; i < 100; i++) {
+      // Queries that are small perturbations of a stored center should hash near it
+      int c = r.nextInt(centers.size());
+      Vector center = centers.get(c).get(r.nextInt(500));
+      Vector v = center.plus(randomVector(10).times(0.01));
+      Distances exact = index.getDistances(v, false);
+      Distances approx = index.getDistances(v, true);
+      assertTrue(approx.clusterDistances[c] >= exact.clusterDistances[c] - 1e-9);
+      if (approx.closestPoints[c] == exact.closestPoints[c]) {
+        matches++;
+      }
+    }
+    assertTrue(matches >= 95);
+  }
+
+  @Test
+  public void testMultiTableCandidatesAreBounded() throws Exception {
+    // Every center lands in the same bucket of both tables
+    LshTables tables = new LshTables(2, 4);
+    tables.update(new long[20], 1, 20);
+    CandidateSelector selector = new CandidateSelector(8, 5);
+    Arrays.fill(selector.getProjection(), -1.0);
+    selector.computeProbes(2, 4, 1);
+    assertEquals(5, selector.select(tables, 2));
+    for (int c = 0; c < 5; c++) {
+      assertEquals(19 - c, selector.get(c));
+    }
+  }
+
+  @Test
+  public void testEmptyBucketFallbacksAreCounted() throws Exception {
+    Vector center = randomVector(10);
+    List<Centers> centers = ImmutableList.of(new Centers(ImmutableList.of(center)));
+    CentersIndex index = new CentersIndex(centers, 64, 10, 4, 0, 31L);
+    Distances d = index.newDistances();
+    // The signature of the center is the same as its own bucket keys
+    index.getDistances(center, true, d);
+    assertEquals(0L, d.fallbacks);
+    // The negated center flips every signature bit, so none of its buckets hold a center
+    index.getDistances(center.times(-1.0), true, d);
+    assertEquals(1L, d.fallbacks);
+    assertEquals(0, d.closestPoints[0]);
+    assertEquals(4 * center.getLengthSquared(), d.clusterDistances[0], 1e-9);
+  }
+
+  @Test
+  public void testCandidateSelectorKeepsTies() throws Exception {
+    CandidateSelector selector = new CandidateSelector(8, 3);
+    selector.getQuery()[0] = 0L;
+    // Hamming distances from the query: 2, 1, 3, 1, 2, 0
+    long[] signatures = { 3L, 4L, 7L, 128L, 5L, 0L };
+    assertEquals(3, selector.select(signatures, signatures.length));
+    assertEquals(1, selector.get(0));
+    assertEquals(3, selector.get(1));
+    assertEquals(5, selector.get(2));
+
+    selector = new CandidateSelector(8, 4);
+    selector.getQuery()[0] = 0L;
+    assertEquals(4, selector.select(signatures, signatures.length));
+    assertEquals(0, selector.get(0));
+    assertEquals(1, selector.get(1));
+    assertEquals(3, selector.get(2));
+    assertEquals(5, selector.get(3));
+  }
+
+  @Test
+  public void testExactDistances() throws Exception {
+    List<Centers> centers = randomCenters(2, 15, 5);
+    CentersIndex index = new CentersIndex(centers);
+    for (int i = 0; i < 20; i++) {
+      Vector v = randomVector(5);
+      Distances d = index.getDistances(v, false);
+      for (int c = 0; c < centers.size(); c++) {
+        assertEquals(centers.get(c).indexOfClosest(v), d.closestPoints[c]);
+        assertEquals(centers.get(c).getDistanceSquared(v), d.clusterDistances[c], 1e-9);
+      }
+    }
+  }
+
+  @Test
+  public void testPrunedExactMatchesBruteForce() throws Exception {
+    List<Centers> centers = randomCenters(2, 300, 4);
+    CentersIndex index = new CentersIndex(centers);
+    VectorBlock<Vector> block = new VectorBlock<Vector>(index, 200);
+    List<Vector> vecs = Lists.newArrayList();
+    long singleComputed = 0;
+    for (int i = 0; i < 200; i++) {
+      Vector v = randomVector(4).times(2.0);
+      vecs.add(v);
+      block.add(v);
+      Distances d = index.getDistances(v, false);
+      singleComputed += d.distancesComputed;
+      for (int c = 0; c < centers.size(); c++) {
+        assertEquals(centers.get(c).indexOfClosest(v), d.closestPoints[c]);
+        assertEquals(centers.get(c).getDistanceSquared(v), d.clusterDistances[c], 1e-9);
+      }
+    }
+    // The blocked kernel that the exact DoFns use applies the same bounds
+    index.getDistances(block, false);
+    long blockComputed = 0;
+    for (int b = 0; b < block.size(); b++) {
+      Distances d = block.distances(b);
+      blockComputed += d.distancesComputed;
+      for (int c = 0; c < centers.size(); c++) {
+        assertEquals(centers.get(c).indexOfClosest(vecs.get(b)), d.closestPoints[c]);
+        assertEquals(centers.get(c).getDistanceSquared(vecs.get(b)), d.clusterDistances[c], 1e-9);
+      }
+    }
+    assertEquals(singleComputed, blockComputed);
+    assertTrue(blockComputed < 200L * centers.size() * 300);
+  }
+
+  @Test
+  public void testBallTreeMatchesBruteForce() throws Exception {
+    List<Centers> centers = randomCenters(2, 1000, 5);
+    // Duplicate centers check that ties go to the lowest index, as in a scan
+    centers.set(1, centers.get(1).extendWith(centers.get(1).get(10)));
+    CentersIndex index = new CentersIndex(centers);
+    index.useBallTrees(8);
+    for (int i = 0; i < 200; i++) {
+      Vector v = i == 0 ? centers.get(1).get(10) : randomVector(5).times(1.5);
+      Distances d = index.getDistances(v, false);
+      for (int c = 0; c < centers.size(); c++) {
+        assertEquals(centers.get(c).indexOfClosest(v), d.closestPoints[c]);
+        assertEquals(centers.get(c).getDistanceSquared(v), d.clusterDistances[c], 1e-9);
+      }
+    }
+  }
+
+  @Test
+  public void testHnswFindsClosestCenters() throws Exception {
+    List<Centers> centers = randomCenters(2, 2000, 8);
+    CentersIndex index = new CentersIndex(centers);
+    index.useHnsw(8, 64, 32);
+    int matches = 0;
+    for (int i = 0; i < 100; i++) {
+      Vector v = randomVector(8);
+      Distances exact = index.getDistances(v, false);
+      Distances approx = index.getDistances(v, true);
+      for (int c = 0; c < centers.size(); c++) {
+        assertTrue(approx.clusterDistances[c] >= exact.clusterDistances[c] - 1e-9);
+        assertEquals(centers.get(c).get(approx.closestPoints[c]).getDistanceSquared(v),
+            approx.clusterDistances[c], 1e-9);
+        if (approx.closestPoints[c] == exact.closestPoints[c]) {
+          matches++;
+        }
+      }
+    }
+    assertTrue(matches >= 190);
+  }
+
+  private Vector randomSparseVector(int dims, int nonZeros) {
+    Vector v = new RandomAccessSparseVector(dims);
+    for (int i = 0; i < nonZeros; i++) {
+      v.setQuick(r.nextInt(dims), r.nextGaussian());
+    }
+    return v;
+  }
+
+  @Test
+  public void testSparseStorage() throws Exception {
+    List<Centers> centers = Lists.newArrayList();
+    for (int c = 0; c < 2; c++) {
+      List<Vector> points = Lists.newArrayList();
+      for (int j = 0; j < 100; j++) {
+        points.add(randomSparseVector(10000, 20));
+      }
+      centers.add(new Centers(points));
+    }
+    CentersIndex index = new CentersIndex(2, 10000, 100, 10, 17L);
+    index.useSparseStorage();
+    for (int c = 0; c < centers.size(); c++) {
+      for (Vector v : centers.get(c)) {
+        index.add(v, c);
+      }
+    }
+    for (int c = 0; c < centers.size(); c++) {
+      List<Vector> stored = index.getPoints(c);
+      for (int j = 0; j < stored.size(); j++) {
+        assertEquals(0.0, stored.get(j).getDistanceSquared(centers.get(c).get(j)), 1e-12);
+      }
+    }
+    for (int i = 0; i < 50; i++) {
+      // Queries near a stored center should find it with the hashed projections as well
+      int c = r.nextInt(centers.size());
+      Vector v = centers.get(c).get(r.nextInt(100)).plus(randomSparseVector(10000, 3).times(0.01));
+      Distances exact = index.getDistances(v, false);
+      Distances approx = index.getDistances(v, true);
+      for (int k = 0; k < centers.size(); k++) {
+        assertEquals(centers.get(k).indexOfClosest(v), exact.closestPoints[k]);
+        assertEquals(centers.get(k).getDistanceSquared(v), exact.clusterDistances[k], 1e-9);
+        assertTrue(approx.clusterDistances[k] >= exact.clusterDistances[k] - 1e-9);
+      }
+      assertEquals(exact.closestPoints[c], approx.closestPoints[c]);
+    }
+  }
+
+  @Test
+  public void testBlockMatchesSingleLookups() throws Exception {
+    // Enough centers to span several tiles of the blocked kernel
+    List<Centers> centers = randomCenters(2, 500, 20);
+    CentersIndex index = new CentersIndex(centers);
+    VectorBlock<Vector> block = new VectorBlock<Vector>(index, 16);
+    List<Vector> vecs = Lists.newArrayList();
+    for (int i = 0; i < 40; i++) {
+      Vector v = randomVector(20);
+      vecs.add(v);
+      if (block.add(v) || i == 39) {
+        index.getDistances(block, false);
+        for (int b = 0; b < block.size(); b++) {
+          Distances single = index.getDistances(vecs.get(b), false);
+          assertArrayEquals(single.closestPoints, block.distances(b).closestPoints);
+          assertArrayEquals(single.clusterDistances, block.distances(b).clusterDistances, 0.0);
+        }
+        block.clear();
+        vecs.clear();
+      }
+    }
+  }
+
+  @Test
+  public void testBlockKernelPrunesWithBounds() throws Exception {
+    // Well separated centers, so most of them can be ruled out by the triangle inequality
+    List<Vector> points = Lists.newArrayList();
+    for (int j = 0; j < 64; j++) {
+      points.add(Vectors.of(10.0 * (j % 8), 10.0 * (j / 8), 0.0));
+    }
+    Centers centers = new Centers(points);
+    CentersIndex index = new CentersIndex(ImmutableList.of(centers));
+    assertTrue(index.hasBlockKernel());
+    VectorBlock<Vector> block = new VectorBlock<Vector>(index, 32);
+    List<Vector> vecs = Lists.newArrayList();
+    for (int i = 0; i < 32; i++) {
+      Vector v = points.get(r.nextInt(points.size())).plus(randomVector(3));
+      vecs.add(v);
+      block.add(v);
+    }
+    index.getDistances(block, false);
+    long blockComputed = 0;
+    long singleComputed = 0;
+    for (int b = 0; b < block.size(); b++) {
+      Distances single = index.getDistances(vecs.get(b), false);
+      assertArrayEquals(single.closestPoints, block.distances(b).closestPoints);
+      assertArrayEquals(single.clusterDistances, block.distances(b).clusterDistances, 0.0);
+      assertEquals(centers.indexOfClosest(vecs.get(b)), block.distances(b).closestPoints[0]);
+      blockComputed += block.distances(b).distancesComputed;
+      singleComputed += single.distancesComputed;
+    }
+    assertEquals(singleComputed, blockComputed);
+    assertTrue(blockComputed < block.size() * points.size() / 2);
+  }
+
+  @Test
+  public void testFloatStorage() throws Exception {
+    List<Centers> centers = randomCenters(2, 300, 12);
+    CentersIndex index = new CentersIndex(2, 12, 128, 10, 0, 0, 17L);
+    index.useFloatStorage();
+    for (int c = 0; c < centers.size(); c++) {
+      for (Vector v : centers.get(c)) {
+        index.add(v, c);
+      }
+    }
+    for (int c = 0; c < centers.size(); c++) {
+      List<Vector> stored = index.getPoints(c);
+      for (int j = 0; j < stored.size(); j++) {
+        assertEquals(0.0, stored.get(j).getDistanceSquared(centers.get(c).get(j)), 1e-10);
+      }
+    }
+    VectorBlock<Vector> block = new VectorBlock<Vector>(index, 8);
+    for (int i = 0; i < 40; i++) {
+      Vector v = randomVector(12);
+      Distances exact = index.getDistances(v, false);
+      for (int k = 0; k < centers.size(); k++) {
+        assertEquals(centers.get(k).getDistanceSquared(v), exact.clusterDistances[k], 1e-5);
+      }
+      block.add(v);
+      index.getDistances(block, false);
+      assertArrayEquals(exact.closestPoints, block.distances(0).closestPoints);
+      assertArrayEquals(exact.clusterDistances, block.distances(0).clusterDistances, 0.0);
+      block.clear();
+    }
+  }
+
+  @Test
+  public void testNormPruningMatchesBruteForce() throws Exception {
+    List<Centers> centers = Lists.newArrayList();
+    for (int c = 0; c < 2; c++) {
+      List<Vector> points = Lists.newArrayList();
+      for (int j = 0; j < 200; j++) {
+        // A wide spread of norms, so that the scan stops early
+        points.add(randomVector(8).times(Math.exp(3 * r.nextGaussian())));
+      }
+      centers.add(new Centers(points));
+    }
+    CentersIndex index = new CentersIndex(centers);
+    index.useNormPruning();
+    for (int i = 0; i < 100; i++) {
+      Vector v = randomVector(8).times(Math.exp(3 * r.nextGaussian()));
+      Distances d = index.getDistances(v, false);
+      for (int k = 0; k < centers.size(); k++) {
+        int closest = 0;
+        double best = Double.POSITIVE_INFINITY;
+        for (int j = 0; j < centers.get(k).size(); j++) {
+          double dist = centers.get(k).get(j).getDistanceSquared(v);
+          if (dist < best) {
+            best = dist;
+            closest = j;
+          }
+        }
+        assertEquals(closest, d.closestPoints[k]);
+        assertEquals(best, d.clusterDistances[k], 1e-9 * (1.0 + v.getLengthSquared()));
+      }
+    }
+  }
+
+  @Test
+  public void testEarlyAbandonMatchesBruteForce() throws Exception {
+    List<Centers> centers = randomCenters(2, 150, 40);
+    CentersIndex abandoning = new CentersIndex(centers);
+    abandoning.useEarlyAbandon();
+    CentersIndex both = new CentersIndex(centers);
+    both.useEarlyAbandon();
+    both.useNormPruning();
+    for (int i = 0; i < 100; i++) {
+      Vector v = randomVector(40);
+      if (i % 10 == 0) {
+        // Sparse vectors are looked up without abandoning
+        v = new RandomAccessSparseVector(v);
+      }
+      Distances d1 = abandoning.getDistances(v, false);
+      Distances d2 = both.getDistances(v, false);
+      for (int k = 0; k < centers.size(); k++) {
+        assertEquals(centers.get(k).indexOfClosest(v), d1.closestPoints[k]);
+        assertEquals(centers.get(k).indexOfClosest(v), d2.closestPoints[k]);
+        assertEquals(centers.get(k).getDistanceSquared(v), d1.clusterDistances[k], 1e-9);
+        assertEquals(centers.get(k).getDistanceSquared(v), d2.clusterDistances[k], 1e-9);
+      }
+    }
+  }
+
+  private static byte[] serialize(Object obj) throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+    oos.writeObject(obj);
+    oos.close();
+    return baos.toByteArray();
+  }
+
+  private static CentersIndex deserialize(byte[] data) throws Exception {
+    return (CentersIndex) new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+  }
+
+  @Test
+  public void testCompactSerialization() throws Exception {
+    List<Centers> centers = randomCenters(3, 50, 10);
+    CentersIndex dense = new CentersIndex(centers);
+    dense.updateIndices();
+    CentersIndex floats = new CentersIndex(3, 10, 64, 10, 4, 2, 1729L);
+    floats.useFloatStorage();
+    CentersIndex sparse = new CentersIndex(3, 10, 128, 10, 1729L);
+    sparse.useSparseStorage();
+    for (int c = 0; c < centers.size(); c++) {
+      for (Vector v : centers.get(c)) {
+        floats.add(v, c);
+        sparse.add(v, c);
+      }
+    }
+    CentersIndex hnsw = new CentersIndex(centers);
+    hnsw.useHnsw(4, 20, 10);
+    CentersIndex tree = new CentersIndex(centers);
+    tree.useBallTrees(4);
+    for (CentersIndex index : ImmutableList.of(dense, floats, sparse, hnsw, tree)) {
+      byte[] data = serialize(index);
+      CentersIndex copy = deserialize(data);
+      // Every copy of the same index in a JVM resolves to one shared instance
+      assertSame(copy, deserialize(data));
+      for (int i = 0; i < 20; i++) {
+        Vector v = randomVector(10);
+        for (boolean approx : new boolean[] { false, true }) {
+          Distances expected = index.getDistances(v, approx);
+          Distances actual = copy.getDistances(v, approx);
+          assertArrayEquals(expected.closestPoints, actual.closestPoints);
+          assertArrayEquals(expected.clusterDistances, actual.clusterDistances, 0.0);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSharedIndexIsThreadSafe() throws Exception {
+    List<Centers> centers = randomCenters(3, 50, 10);
+    CentersIndex dense = new CentersIndex(centers, 64, 4, 1729L);
+    CentersIndex pruned = new CentersIndex(centers);
+    pruned.useNormPruning();
+    pruned.useEarlyAbandon();
+    CentersIndex hnsw = new CentersIndex(centers);
+    hnsw.useHnsw(4, 20, 10);
+    CentersIndex tree = new CentersIndex(centers);
+    tree.useBallTrees(4);
+    final List<Vector> vecs = Lists.newArrayList();
+    for (int i = 0; i < 200; i++) {
+      vecs.add(randomVector(10));
+    }
+    ExecutorService exec = Executors.newFixedThreadPool(4);
+    try {
+      for (CentersIndex index : ImmutableList.of(dense, pruned, hnsw, tree)) {
+        // Every thread looks up the same vectors in the same freshly shared copy at once
+        final CentersIndex copy = deserialize(serialize(index));
+        List<Future<List<Distances>>> results = Lists.newArrayList();
+        for (int t = 0; t < 4; t++) {
+          results.add(exec.submit(new Callable<List<Distances>>() {
+            @Override
+            public List<Distances> call() {
+              List<Distances> ds = Lists.newArrayList();
+              for (Vector v : vecs) {
+                ds.add(copy.getDistances(v, false));
+                ds.add(copy.getDistances(v, true));
+              }
+              return ds;
+            }
+          }));
+        }
+        for (Future<List<Distances>> f : results) {
+          List<Distances> ds = f.get();
+          for (int i = 0; i < vecs.size(); i++) {
+            for (int k = 0; k < 2; k++) {
+              Distances expected = index.getDistances(vecs.get(i), k == 1);
+              assertArrayEquals(expected.closestPoints, ds.get(2 * i + k).closestPoints);
+              assertArrayEquals(expected.clusterDistances, ds.get(2 * i + k).clusterDistances,
+                  0.0);
+            }
+          }
+        }
+      }
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnevenTableSplitIsRejected() throws Exception {
+    new CentersIndex(1, 4, 100, 10, 3, 2, 17L);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSharedIndexIsReadOnly() throws Exception {
+    CentersIndex copy = deserialize(serialize(new CentersIndex(randomCenters(1, 5, 3))));
+    copy.add(randomVector(3), 0);
+  }
+}
@@ -15,24 +15,42 @@
 package com.cloudera.science.ml.kmeans.parallel;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
 import org.apache.crunch.PCollection;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.crunch.impl.mem.MemPipeline;
 import org.apache.mahout.math.Vector;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.cloudera.science.ml.avro.MLCenters;
+import com.cloudera.science.ml.avro.MLClusterCovariance;
+import com.cloudera.science.ml.avro.MLInitializationCheckpoint;
+import com.cloudera.science.ml.avro.MLLloydsCheckpoint;
+import com.cloudera.science.ml.avro.MLMatrixEntry;
 import com.cloudera.science.ml.core.vectors.Centers;
+import com.cloudera.science.ml.core.vectors.VectorConvert;
 import com.cloudera.science.ml.core.vectors.Vectors;
 import com.cloudera.science.ml.core.vectors.Weighted;
 import com.cloudera.science.ml.kmeans.core.KMeans;
 import com.cloudera.science.ml.parallel.crossfold.Crossfold;
+import com.cloudera.science.ml.parallel.dedupe.Dedupe;
 import com.cloudera.science.ml.parallel.types.MLAvros;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.google.common.primitives.Doubles;
 
 public class KMeansParallelTest {
   
@@ -80,6 +98,157 @@ public class KMeansParallelTest {
     assertEquals(ImmutableList.of(67.0, 6.0, 4.0), costs);
   }
   
+  @Test
+  public void testFusedWeighting() throws Exception {
+    List<Vector> initialPoints = ImmutableList.of(Vectors.of(1.0, 1.0));
+    for (int numIterations = 1; numIterations <= 3; numIterations++) {
+      List<List<Weighted<Vector>>> fused = KMeansParallel.builder().random(new Random(29L))
+          .fusedWeighting(true).build()
+          .initialization(vecs, numIterations, 2, initialPoints, new Crossfold(2, 1729L));
+      List<List<Weighted<Vector>>> rescored = KMeansParallel.builder().random(new Random(29L))
+          .build()
+          .initialization(vecs, numIterations, 2, initialPoints, new Crossfold(2, 1729L));
+      // The candidates that existed before the final sample was drawn
+      List<List<Weighted<Vector>>> previous = KMeansParallel.builder().random(new Random(29L))
+          .build()
+          .initialization(vecs, numIterations - 1, 2, initialPoints, new Crossfold(2, 1729L));
+      assertEquals(rescored.size(), fused.size());
+      for (int i = 0; i < fused.size(); i++) {
+        List<Weighted<Vector>> f = fused.get(i);
+        List<Weighted<Vector>> r = rescored.get(i);
+        assertEquals(r.size(), f.size());
+        double fusedTotal = 0.0, rescoredTotal = 0.0;
+        for (int j = 0; j < f.size(); j++) {
+          assertEquals(r.get(j).thing(), f.get(j).thing());
+          if (j < previous.get(i).size()) {
+            // Existing candidates only lose the points that were sampled as new candidates
+            assertTrue(f.get(j).weight() >= r.get(j).weight());
+          } else {
+            // New candidates only take their own count from their closest existing candidate
+            assertTrue(f.get(j).weight() >= 1.0);
+            assertTrue(f.get(j).weight() <= Math.max(1.0, r.get(j).weight()));
+          }
+          fusedTotal += f.get(j).weight();
+          rescoredTotal += r.get(j).weight();
+        }
+        assertEquals(rescoredTotal, fusedTotal, 0.0);
+      }
+      if (numIterations == 3) {
+        // Every point already coincides with a candidate, so the final sample is empty and
+        // the fused weights are exact
+        assertEquals(rescored, fused);
+      }
+    }
+  }
+  
+  @Test
+  public void testBernoulliSampling() throws Exception {
+    List<Vector> initialPoints = ImmutableList.of(Vectors.of(1.0, 1.0));
+    KMeansParallel bernoulli = KMeansParallel.builder().random(new Random(29L))
+        .bernoulliSampling(true).build();
+    List<List<Weighted<Vector>>> points = bernoulli.initialization(vecs, 3, 4, initialPoints,
+        new Crossfold(2, 1729L));
+    assertEquals(2, points.size());
+    long total = 0;
+    for (List<Weighted<Vector>> fold : points) {
+      // The initial point is always a candidate
+      assertTrue(fold.size() >= 1);
+      for (Weighted<Vector> wv : fold) {
+        total += (long) wv.weight();
+      }
+    }
+    assertEquals(16, total);
+    
+    // A reservoir sample adds exactly one candidate per fold on each iteration, while the
+    // Bernoulli sample only does so in expectation
+    Set<Integer> reservoirSizes = Sets.newHashSet();
+    Set<Integer> bernoulliSizes = Sets.newHashSet();
+    for (long seed = 0; seed < 20; seed++) {
+      for (boolean mode : new boolean[] { false, true }) {
+        KMeansParallel k = KMeansParallel.builder().random(new Random(seed))
+            .bernoulliSampling(mode).build();
+        for (List<Weighted<Vector>> fold : k.initialization(vecs, 1, 1, initialPoints,
+            new Crossfold(2, 1729L))) {
+          (mode ? bernoulliSizes : reservoirSizes).add(fold.size());
+        }
+      }
+    }
+    assertEquals(ImmutableSet.of(2), reservoirSizes);
+    assertTrue(bernoulliSizes.size() > 1);
+  }
+  
+  @Test
+  public void testMaxCandidates() throws Exception {
+    List<Vector> initialPoints = ImmutableList.of(Vectors.of(1.0, 1.0));
+    KMeansParallel bounded = KMeansParallel.builder().random(new Random(29L))
+        .maxCandidates(2).build();
+    List<List<Weighted<Vector>>> points = bounded.initialization(vecs, 3, 4, initialPoints,
+        new Crossfold(2, 1729L));
+    long total = 0;
+    for (List<Weighted<Vector>> fold : points) {
+      assertTrue(fold.size() <= 2);
+      for (Weighted<Vector> wv : fold) {
+        total += (long) wv.weight();
+      }
+    }
+    assertEquals(16, total);
+  }
+  
+  @Test
+  public void testLshFallbacksAreCounted() throws Exception {
+    // A single center on the other side of the origin from every point, with 16-bit buckets
+    // and no probes, so that the points find no center in any of their buckets
+    KMeansParallel tables = KMeansParallel.builder().random(new Random(29L))
+        .projectionBits(64).numTables(4).numProbes(0).build();
+    List<Centers> centers = ImmutableList.of(new Centers(Vectors.of(-1.0, -1.0)));
+    MemPipeline.clearCounters();
+    List<Double> costs = tables.getCosts(vecs, centers, true).getValue();
+    assertEquals(kmp.getCosts(vecs, centers, false).getValue(), costs);
+    assertTrue(MemPipeline.getCounters().findCounter(CentersIndex.Counter.LSH_FALLBACKS)
+        .getValue() > 0);
+  }
+  
+  @Test
+  public void testMaxCandidatesWithFusedWeighting() throws Exception {
+    List<Vector> initialPoints = ImmutableList.of(Vectors.of(1.0, 1.0));
+    KMeansParallel bounded = KMeansParallel.builder().random(new Random(29L))
+        .maxCandidates(2).fusedWeighting(true).build();
+    List<List<Weighted<Vector>>> points = bounded.initialization(vecs, 3, 4, initialPoints,
+        new Crossfold(2, 1729L));
+    long total = 0;
+    for (List<Weighted<Vector>> fold : points) {
+      // The candidates sampled on the fused last iteration are reduced as well
+      assertTrue(fold.size() <= 2);
+      for (Weighted<Vector> wv : fold) {
+        total += (long) wv.weight();
+      }
+    }
+    assertEquals(16, total);
+  }
+  
+  @Test
+  public void testCacheFolds() throws Exception {
+    List<Vector> initialPoints = ImmutableList.of(Vectors.of(1.0, 1.0));
+    KMeansParallel cached = KMeansParallel.builder().random(new Random(29L))
+        .cacheFolds(true).build();
+    KMeansParallel uncached = KMeansParallel.builder().random(new Random(29L)).build();
+    assertEquals(
+        uncached.initialization(vecs, 3, 4, initialPoints, new Crossfold(2, 1729L)),
+        cached.initialization(vecs, 3, 4, initialPoints, new Crossfold(2, 1729L)));
+  }
+  
+  @Test
+  public void testSinglePrecision() throws Exception {
+    KMeansParallel floats = KMeansParallel.builder().random(new Random(1729L))
+        .singlePrecision(true).build();
+    List<Centers> centers = ImmutableList.of(
+        new Centers(ImmutableList.of(Vectors.of(1.0, 1.0), Vectors.of(5.0, 4.0))));
+    List<Centers> res = floats.lloydsAlgorithm(vecs, centers, 1, false);
+    List<Centers> expected = ImmutableList.of(
+        new Centers(ImmutableList.of(Vectors.of(1.5, 1.0), Vectors.of(4.5, 3.5))));
+    assertEquals(expected, res);
+  }
+  
   @Test
   public void testLloyds() throws Exception {
     List<Centers> centers = ImmutableList.of(
@@ -95,4 +264,254 @@ public class KMeansParallelTest {
     res = kmp.lloydsAlgorithm(vecs, res, 1, false);
     assertEquals(expected, res);
   }
+  
+  @Test
+  public void testLloydsConvergence() throws Exception {
+    List<Centers> centers = ImmutableList.of(
+        new Centers(ImmutableList.of(Vectors.of(1.0, 1.0), Vectors.of(5.0, 4.0))));
+    LloydsResult res = kmp.lloydsAlgorithm(vecs, centers, 10, false, 0.0, 1e-6);
+    List<Centers> expected = ImmutableList.of(
+        new Centers(ImmutableList.of(Vectors.of(1.5, 1.0), Vectors.of(4.5, 3.5))));
+    assertEquals(expected, res.getCenters());
+    assertTrue(res.isConverged());
+    assertEquals(2, res.getNumIterations());
+    assertEquals(ImmutableList.of(12.0), res.getCosts().get(0));
+    assertEquals(ImmutableList.of(6.0), res.getCosts().get(1));
+  }
+  
+  @Test
+  public void testDedupedInput() throws Exception {
+    PCollection<Weighted<Vector>> deduped = Dedupe.apply(vecs);
+    List<Weighted<Vector>> distinct = Lists.newArrayList(deduped.materialize());
+    assertEquals(4, distinct.size());
+    for (Weighted<Vector> wv : distinct) {
+      assertEquals(4.0, wv.weight(), 0.0);
+    }
+    
+    List<Centers> centers = ImmutableList.of(
+        new Centers(ImmutableList.of(Vectors.of(1.0, 1.0), Vectors.of(5.0, 4.0))));
+    LloydsResult res = kmp.weightedLloydsAlgorithm(deduped, centers, 10, false, 0.0, 1e-6);
+    LloydsResult expected = kmp.lloydsAlgorithm(vecs, centers, 10, false, 0.0, 1e-6);
+    assertEquals(expected.getCenters(), res.getCenters());
+    assertEquals(expected.getCosts(), res.getCosts());
+    assertEquals(kmp.getCosts(vecs, res.getCenters(), false).getValue(),
+        kmp.getWeightedCosts(deduped, res.getCenters(), false).getValue());
+    assertEquals(kmp.getCountsOfClosest(vecs, res.getCenters()).getValue(),
+        kmp.getWeightedCountsOfClosest(deduped, res.getCenters()).getValue());
+    
+    KMeansParallel fused = KMeansParallel.builder().random(new Random(29L)).fusedWeighting(true).build();
+    List<List<Weighted<Vector>>> points = fused.weightedInitialization(deduped, 3, 4,
+        ImmutableList.of(Vectors.of(1.0, 1.0)), new Crossfold(2, 1729L));
+    long total = 0;
+    for (List<Weighted<Vector>> fold : points) {
+      for (Weighted<Vector> wv : fold) {
+        total += (long) wv.weight();
+      }
+    }
+    // Each distinct point still counts for all of its copies
+    assertEquals(16, total);
+  }
+  
+  @Test
+  public void testLloydsResumesFromCheckpoint() throws Exception {
+    File checkpoint = new File(Files.createTempDir(), "lloyds.avro");
+    List<Centers> first = ImmutableList.of(
+        new Centers(ImmutableList.of(Vectors.of(1.5, 1.0), Vectors.of(4.5, 3.5))));
+    Checkpoints.write(MLLloydsCheckpoint.newBuilder()
+        .setIteration(1)
+        .setCenters(Lists.transform(first, VectorConvert.FROM_CENTERS))
+        .setCosts(ImmutableList.<List<Double>>of(ImmutableList.of(12.0)))
+        .build(), checkpoint.getAbsolutePath(), new Configuration());
+    
+    KMeansParallel resumed = KMeansParallel.builder().random(new Random(29L))
+        .checkpointPath(checkpoint.getAbsolutePath()).build();
+    // The initial centers are ignored in favor of the checkpointed ones
+    List<Centers> centers = ImmutableList.of(
+        new Centers(ImmutableList.of(Vectors.of(0.0, 0.0), Vectors.of(9.0, 9.0))));
+    LloydsResult res = resumed.lloydsAlgorithm(vecs, centers, 2, false, 0.0, 0.0);
+    assertEquals(first, res.getCenters());
+    assertEquals(2, res.getNumIterations());
+    assertEquals(ImmutableList.of(12.0), res.getCosts().get(0));
+    assertEquals(ImmutableList.of(6.0), res.getCosts().get(1));
+    assertFalse(checkpoint.exists());
+  }
+  
+  @Test
+  public void testLloydsResumesConvergedCheckpoint() throws Exception {
+    File checkpoint = new File(Files.createTempDir(), "lloyds.avro");
+    List<Centers> first = ImmutableList.of(
+        new Centers(ImmutableList.of(Vectors.of(1.5, 1.0), Vectors.of(4.5, 3.5))));
+    Checkpoints.write(MLLloydsCheckpoint.newBuilder()
+        .setIteration(1)
+        .setCenters(Lists.transform(first, VectorConvert.FROM_CENTERS))
+        .setCosts(ImmutableList.<List<Double>>of(ImmutableList.of(12.0)))
+        .setConverged(true)
+        .build(), checkpoint.getAbsolutePath(), new Configuration());
+    
+    // A run that had already converged does no more iterations when it is resumed
+    KMeansParallel resumed = KMeansParallel.builder().random(new Random(29L))
+        .checkpointPath(checkpoint.getAbsolutePath()).build();
+    LloydsResult res = resumed.lloydsAlgorithm(vecs, first, 5, false, 0.0, 1e-6);
+    assertTrue(res.isConverged());
+    assertEquals(1, res.getNumIterations());
+    assertEquals(first, res.getCenters());
+    assertFalse(checkpoint.exists());
+  }
+  
+  @Test
+  public void testInitializationWithCheckpoints() throws Exception {
+    File checkpoint = new File(Files.createTempDir(), "ksketch.avro");
+    List<Vector> initialPoints = ImmutableList.of(Vectors.of(1.0, 1.0));
+    KMeansParallel checkpointed = KMeansParallel.builder().random(new Random(29L))
+        .bernoulliSampling(true).checkpointPath(checkpoint.getAbsolutePath()).build();
+    KMeansParallel plain = KMeansParallel.builder().random(new Random(29L))
+        .bernoulliSampling(true).build();
+    assertEquals(
+        plain.initialization(vecs, 3, 4, initialPoints, new Crossfold(2, 1729L)),
+        checkpointed.initialization(vecs, 3, 4, initialPoints, new Crossfold(2, 1729L)));
+    assertFalse(checkpoint.exists());
+  }
+  
+  @Test
+  public void testInitializationResumesFromCheckpoint() throws Exception {
+    File checkpoint = new File(Files.createTempDir(), "ksketch.avro");
+    MLCenters candidates = VectorConvert.fromCenters(
+        new Centers(Vectors.of(1.0, 1.0), Vectors.of(5.0, 4.0)));
+    Checkpoints.write(MLInitializationCheckpoint.newBuilder()
+        .setIteration(3)
+        .setIndexSeed(17L)
+        .setCandidates(ImmutableList.of(candidates, candidates))
+        .setMasses(ImmutableList.<List<Double>>of(ImmutableList.<Double>of(), ImmutableList.<Double>of()))
+        .build(), checkpoint.getAbsolutePath(), new Configuration());
+    
+    KMeansParallel resumed = KMeansParallel.builder().random(new Random(29L))
+        .checkpointPath(checkpoint.getAbsolutePath()).build();
+    // All of the iterations are done, so only the weighting pass is left to run
+    List<List<Weighted<Vector>>> points = resumed.initialization(vecs, 3, 4,
+        ImmutableList.of(Vectors.of(2.0, 1.0)), new Crossfold(2, 1729L));
+    long total = 0;
+    for (List<Weighted<Vector>> fold : points) {
+      assertEquals(2, fold.size());
+      assertEquals(Vectors.of(1.0, 1.0), fold.get(0).thing());
+      assertEquals(Vectors.of(5.0, 4.0), fold.get(1).thing());
+      for (Weighted<Vector> wv : fold) {
+        total += (long) wv.weight();
+      }
+    }
+    assertEquals(16, total);
+    assertFalse(checkpoint.exists());
+  }
+  
+  @Test
+  public void testFusedCovariance() throws Exception {
+    List<Centers> centers = ImmutableList.of(
+        new Centers(ImmutableList.of(Vectors.of(1.0, 1.0), Vectors.of(5.0, 4.0))));
+    assertNull(kmp.lloydsAlgorithm(vecs, centers, 1, false, 0.0, 0.0).getCovariances());
+    
+    KMeansParallel fused = KMeansParallel.builder().random(new Random(29L))
+        .fusedCovariance(true).build();
+    LloydsResult res = fused.lloydsAlgorithm(vecs, centers, 1, false, 0.0, 0.0);
+    List<MLClusterCovariance> expected = fused.computeClusterCovarianceMatrix(
+        vecs, res.getCenters(), false, null).getValue();
+    assertCovariancesEqual(expected, res.getCovariances());
+    
+    // Converging early uses the moments of the last iteration that ran
+    res = fused.lloydsAlgorithm(vecs, centers, 10, false, 0.0, 1e-6);
+    assertTrue(res.isConverged());
+    assertCovariancesEqual(expected, res.getCovariances());
+  }
+  
+  @Test
+  public void testFusedCovarianceWhenAssignmentsChange() throws Exception {
+    // (2, 1) starts out with the far points, but is closer to (1, 1) once the centers move
+    Vector a = Vectors.of(1.0, 1.0);
+    Vector b = Vectors.of(2.0, 1.0);
+    List<Centers> centers = ImmutableList.of(new Centers(ImmutableList.of(a, b)));
+    KMeansParallel fused = KMeansParallel.builder().random(new Random(29L))
+        .fusedCovariance(true).build();
+    LloydsResult res = fused.lloydsAlgorithm(vecs, centers, 1, false, 0.0, 0.0);
+    
+    // The fused covariances are those of the clusters of the last iteration, i.e., of the
+    // points closest to the centers that it started from
+    List<List<Vector>> clusters = ImmutableList.<List<Vector>>of(
+        Lists.<Vector>newArrayList(), Lists.<Vector>newArrayList());
+    for (Vector v : vecs.materialize()) {
+      clusters.get(v.getDistanceSquared(a) <= v.getDistanceSquared(b) ? 0 : 1).add(v);
+    }
+    List<MLClusterCovariance> expected = Lists.newArrayList();
+    for (int j = 0; j < 2; j++) {
+      expected.add(covariance(clusters.get(j), res.getCenters().get(0).indexOf(
+          mean(clusters.get(j)))));
+    }
+    assertCovariancesEqual(expected, res.getCovariances());
+    
+    // A separate pass assigns (2, 1) to the new center of (1, 1) instead
+    List<MLClusterCovariance> separate = fused.computeClusterCovarianceMatrix(
+        vecs, res.getCenters(), false, null).getValue();
+    long smallest = Long.MAX_VALUE;
+    for (MLClusterCovariance cov : res.getCovariances()) {
+      smallest = Math.min(smallest, cov.getCount());
+    }
+    assertEquals(4L, smallest);
+    for (MLClusterCovariance cov : separate) {
+      assertEquals(8L, (long) cov.getCount());
+    }
+  }
+  
+  private static Vector mean(List<Vector> points) {
+    Vector sum = points.get(0).like();
+    for (Vector v : points) {
+      sum = sum.plus(v);
+    }
+    return sum.divide(points.size());
+  }
+  
+  private static MLClusterCovariance covariance(List<Vector> points, int centerId) {
+    Vector mean = mean(points);
+    int dims = mean.size();
+    List<MLMatrixEntry> entries = Lists.newArrayList();
+    for (int r = 0; r < dims; r++) {
+      for (int c = r; c < dims; c++) {
+        double sum = 0.0;
+        for (Vector v : points) {
+          sum += (v.get(r) - mean.get(r)) * (v.get(c) - mean.get(c));
+        }
+        entries.add(MLMatrixEntry.newBuilder().setRow(r).setColumn(c)
+            .setValue(sum / points.size()).build());
+      }
+    }
+    return MLClusterCovariance.newBuilder()
+        .setClusteringId(0)
+        .setCenterId(centerId)
+        .setMeans(Lists.newArrayList(Doubles.asList(Vectors.toArray(mean))))
+        .setCount((long) points.size())
+        .setCov(entries)
+        .build();
+  }
+  
+  private static void assertCovariancesEqual(List<MLClusterCovariance> expected,
+      List<MLClusterCovariance> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (MLClusterCovariance e : expected) {
+      MLClusterCovariance match = null;
+      for (MLClusterCovariance a : actual) {
+        if (a.getClusteringId().equals(e.getClusteringId())
+            && a.getCenterId().equals(e.getCenterId())) {
+          match = a;
+        }
+      }
+      assertEquals(e.getCount(), match.getCount());
+      assertEquals(e.getMeans(), match.getMeans());
+      assertArrayEquals(toArray(e), toArray(match), 1e-9);
+    }
+  }
+  
+  private static double[] toArray(MLClusterCovariance cov) {
+    int dims = cov.getMeans().size();
+    double[] values = new double[dims * dims];
+    for (MLMatrixEntry entry : cov.getCov()) {
+      values[entry.getRow() * dims + entry.getColumn()] = entry.getValue();
+    }
+    return values;
+  }
 }
@@ -14,19 +14,18 @@
  */
 package com.cloudera.science.ml.parallel.covariance;
 
-import org.apache.mahout.math.DenseMatrix;
-import org.apache.mahout.math.DenseVector;
-import org.apache.mahout.math.Matrix;
 import org.apache.mahout.math.Vector;
 
+import com.cloudera.science.ml.core.vectors.DistanceKernel;
+
 import java.io.Serializable;
 
 public class MahalanobisDistance implements Serializable {
   private final double[] means;
   private final double[][] covInv;
   private final long n;
-  private transient Vector m;
-  private transient Matrix ci;
+  private transient DistanceKernel kernel;
+  private transient double[] diff;
 
   public MahalanobisDistance(double[] means, double[][] covInv, long n) {
     this.means = means;
@@ -35,14 +34,20 @@ public class MahalanobisDistance implements Serializable {
   }
 
   public void initialize() {
-    if (m == null) {
-      this.m = new DenseVector(means);
-      this.ci = new DenseMatrix(covInv);
+    if (kernel == null) {
+      this.kernel = DistanceKernel.get();
+      this.diff = new double[means.length];
     }
   }
 
   public double distance(Vector v) {
-    Vector d = v.minus(m);
-    return d.dot(ci.times(d));
+    for (int i = 0; i < means.length; i++) {
+      diff[i] = v.getQuick(i) - means[i];
+    }
+    double dist = 0.0;
+    for (int i = 0; i < means.length; i++) {
+      dist += diff[i] * kernel.dot(covInv[i], 0, diff, 0, diff.length);
+    }
+    return dist;
   }
 }
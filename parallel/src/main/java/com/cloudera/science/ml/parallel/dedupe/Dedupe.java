@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.parallel.dedupe;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.apache.crunch.MapFn;
+import org.apache.crunch.PCollection;
+import org.apache.crunch.PGroupedTable;
+import org.apache.crunch.PTable;
+import org.apache.crunch.Pair;
+import org.apache.crunch.fn.Aggregators;
+import org.apache.crunch.types.avro.Avros;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+
+import com.cloudera.science.ml.core.vectors.Weighted;
+import com.cloudera.science.ml.parallel.types.MLAvros;
+
+/**
+ * Collapses identical vectors into a single {@code Weighted<Vector>} whose weight is the
+ * number of times the vector occurred in the input. The vectors are hash-partitioned on
+ * their values, with the counts combined on the map side, so the shuffle only carries one
+ * record per distinct vector from each task. The names of any {@code NamedVector} inputs are
+ * dropped, since two copies of a point with different names are still the same point.
+ *
+ * <p>Since the vectors are grouped on their serialized form, each one is first rewritten in a
+ * canonical form: -0.0 becomes 0.0, every NaN becomes {@code Double.NaN}, and the vector is
+ * stored densely if more than half of its entries are non-zero (or if all of them are zero)
+ * and sparsely, in index order, otherwise. So a dense and a sparse copy of the same values
+ * are merged.
+ */
+public final class Dedupe {
+
+  /**
+   * Returns the distinct vectors in the input, weighted by their multiplicity.
+   */
+  public static <V extends Vector> PCollection<Weighted<Vector>> apply(PCollection<V> vecs) {
+    return apply(vecs, -1);
+  }
+  
+  /**
+   * Returns the distinct vectors in the input, weighted by their multiplicity, using the
+   * given number of partitions for the shuffle (or the planner's default if it is not positive).
+   */
+  public static <V extends Vector> PCollection<Weighted<Vector>> apply(PCollection<V> vecs,
+      int numPartitions) {
+    PTable<Vector, Long> ones = vecs.parallelDo("dedupe", new CountOneFn<V>(),
+        Avros.tableOf(MLAvros.vector(), Avros.longs()));
+    PGroupedTable<Vector, Long> grouped = numPartitions > 0 ?
+        ones.groupByKey(numPartitions) : ones.groupByKey();
+    return grouped
+        .combineValues(Aggregators.SUM_LONGS())
+        .parallelDo("weight", new WeightFn(), MLAvros.weightedVector());
+  }
+  
+  private static class CountOneFn<V extends Vector> extends MapFn<V, Pair<Vector, Long>> {
+    @Override
+    public Pair<Vector, Long> map(V vec) {
+      Vector v = vec instanceof NamedVector ? ((NamedVector) vec).getDelegate() : vec;
+      return Pair.of(canonical(v), 1L);
+    }
+  }
+  
+  static Vector canonical(Vector v) {
+    int size = v.size();
+    int nonZero = 0;
+    Iterator<Vector.Element> iter = v.iterateNonZero();
+    while (iter.hasNext()) {
+      if (iter.next().get() != 0.0) {
+        nonZero++;
+      }
+    }
+    Vector c;
+    if (nonZero == 0 || 2 * nonZero > size) {
+      c = new DenseVector(size);
+    } else {
+      c = new SequentialAccessSparseVector(size, nonZero);
+    }
+    // Sorting the indices keeps the sequential access vector's inserts cheap
+    int[] indices = new int[nonZero];
+    int n = 0;
+    iter = v.iterateNonZero();
+    while (iter.hasNext()) {
+      Vector.Element e = iter.next();
+      if (e.get() != 0.0) { // Also drops -0.0
+        indices[n++] = e.index();
+      }
+    }
+    Arrays.sort(indices);
+    for (int i : indices) {
+      double x = v.getQuick(i);
+      c.setQuick(i, x == x ? x : Double.NaN);
+    }
+    return c;
+  }
+  
+  private static class WeightFn extends MapFn<Pair<Vector, Long>, Weighted<Vector>> {
+    @Override
+    public Weighted<Vector> map(Pair<Vector, Long> input) {
+      return new Weighted<Vector>(input.first(), input.second());
+    }
+  }
+  
+  private Dedupe() { }
+}
@@ -18,15 +18,19 @@ package com.cloudera.science.ml.parallel.types;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
 import org.apache.crunch.MapFn;
+import org.apache.crunch.Pair;
 import org.apache.crunch.types.avro.AvroType;
 import org.apache.crunch.types.avro.Avros;
 import org.apache.mahout.math.NamedVector;
 import org.apache.mahout.math.Vector;
 
+import com.cloudera.science.ml.avro.MLFloatVector;
 import com.cloudera.science.ml.avro.MLVector;
+import com.cloudera.science.ml.avro.MLWeightedVector;
 import com.cloudera.science.ml.core.records.Record;
 import com.cloudera.science.ml.core.records.avro.AvroRecord;
 import com.cloudera.science.ml.core.vectors.VectorConvert;
+import com.cloudera.science.ml.core.vectors.Weighted;
 
 
 /**
@@ -41,10 +45,43 @@ public final class MLAvros {
     return vector;
   }
   
+  /**
+   * Returns an {@code AvroType<Vector>} that is stored as an {@code MLFloatVector}, i.e., with
+   * the values rounded to single precision, which halves the size of dense vectors in files
+   * and in the shuffle. Vectors of this type are read back as ordinary (double) vectors.
+   */
+  public static AvroType<Vector> floatVector() {
+    return floatVector;
+  }
+  
+  /**
+   * Returns {@link #floatVector()} if {@code singlePrecision} is set, and {@link #vector()}
+   * otherwise.
+   */
+  public static AvroType<Vector> vector(boolean singlePrecision) {
+    return singlePrecision ? floatVector : vector;
+  }
+  
   public static AvroType<NamedVector> namedVector() {
     return namedVector;
   }
   
+  /**
+   * Returns an {@code AvroType<Weighted<Vector>>} that is stored as an {@code MLWeightedVector}.
+   */
+  public static AvroType<Weighted<Vector>> weightedVector() {
+    return weightedVector;
+  }
+  
+  /**
+   * Returns an {@code AvroType<Weighted<Vector>>} whose vector is stored as an
+   * {@code MLFloatVector} if {@code singlePrecision} is set, and {@link #weightedVector()}
+   * otherwise.
+   */
+  public static AvroType<Weighted<Vector>> weightedVector(boolean singlePrecision) {
+    return singlePrecision ? weightedFloatVector : weightedVector;
+  }
+  
   public static AvroType<Record> record(Schema schema) {
     return Avros.derived(Record.class,
         new MapFn<GenericData.Record, Record>() {
@@ -77,6 +114,21 @@ public final class MLAvros {
       },
       Avros.specifics(MLVector.class));
   
+  private static final AvroType<Vector> floatVector = Avros.derived(Vector.class,
+      new MapFn<MLFloatVector, Vector>() {
+        @Override
+        public Vector map(MLFloatVector vec) {
+          return VectorConvert.toVector(vec);
+        }
+      },
+      new MapFn<Vector, MLFloatVector>() {
+        @Override
+        public MLFloatVector map(Vector vec) {
+          return VectorConvert.fromVectorAsFloat(vec);
+        }
+      },
+      Avros.specifics(MLFloatVector.class));
+  
   private static final AvroType<NamedVector> namedVector = Avros.derived(NamedVector.class,
       new MapFn<MLVector, NamedVector>() {
         @Override
@@ -92,6 +144,38 @@ public final class MLAvros {
       },
       Avros.specifics(MLVector.class));
   
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static final AvroType<Weighted<Vector>> weightedVector = Avros.derived((Class) Weighted.class,
+      new MapFn<MLWeightedVector, Weighted<Vector>>() {
+        @Override
+        public Weighted<Vector> map(MLWeightedVector wv) {
+          return VectorConvert.toWeightedVec(wv);
+        }
+      },
+      new MapFn<Weighted<Vector>, MLWeightedVector>() {
+        @Override
+        public MLWeightedVector map(Weighted<Vector> wv) {
+          return VectorConvert.fromWeightedVec(wv);
+        }
+      },
+      Avros.specifics(MLWeightedVector.class));
+  
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static final AvroType<Weighted<Vector>> weightedFloatVector = Avros.derived((Class) Weighted.class,
+      new MapFn<Pair<Vector, Double>, Weighted<Vector>>() {
+        @Override
+        public Weighted<Vector> map(Pair<Vector, Double> p) {
+          return new Weighted<Vector>(p.first(), p.second());
+        }
+      },
+      new MapFn<Weighted<Vector>, Pair<Vector, Double>>() {
+        @Override
+        public Pair<Vector, Double> map(Weighted<Vector> wv) {
+          return Pair.of(wv.thing(), wv.weight());
+        }
+      },
+      Avros.pairs(floatVector, Avros.doubles()));
+  
   static {
     Avros.register(Vector.class, vector);
     Avros.register(NamedVector.class, namedVector);
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2013, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.science.ml.parallel.dedupe;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+
+import org.apache.crunch.PCollection;
+import org.apache.crunch.impl.mem.MemPipeline;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import com.cloudera.science.ml.core.vectors.VectorConvert;
+import com.cloudera.science.ml.core.vectors.Vectors;
+import com.cloudera.science.ml.core.vectors.Weighted;
+import com.cloudera.science.ml.parallel.types.MLAvros;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+public class DedupeTest {
+
+  private static Vector sparse(int size, int index, double value) {
+    Vector v = new RandomAccessSparseVector(size);
+    v.setQuick(index, value);
+    return v;
+  }
+  
+  @Test
+  public void testCanonicalEncoding() throws Exception {
+    Vector dense = Vectors.of(0.0, 0.0, 3.0, -0.0);
+    Vector sparse = sparse(4, 2, 3.0);
+    Vector negativeZero = Vectors.of(-0.0, 0.0, 3.0, 0.0);
+    assertEquals(VectorConvert.fromVector(Dedupe.canonical(dense)),
+        VectorConvert.fromVector(Dedupe.canonical(sparse)));
+    assertEquals(VectorConvert.fromVector(Dedupe.canonical(dense)),
+        VectorConvert.fromVector(Dedupe.canonical(negativeZero)));
+    
+    Vector mostlyNonZero = Vectors.of(1.0, 2.0, 3.0, 0.0);
+    Vector sparseCopy = new RandomAccessSparseVector(4);
+    sparseCopy.setQuick(1, 2.0);
+    sparseCopy.setQuick(0, 1.0);
+    sparseCopy.setQuick(2, 3.0);
+    assertEquals(VectorConvert.fromVector(Dedupe.canonical(mostlyNonZero)),
+        VectorConvert.fromVector(Dedupe.canonical(sparseCopy)));
+    
+    // All-zero vectors are stored densely in either case
+    assertEquals(VectorConvert.fromVector(Dedupe.canonical(Vectors.of(0.0, -0.0))),
+        VectorConvert.fromVector(Dedupe.canonical(new RandomAccessSparseVector(2))));
+  }
+  
+  @Test
+  public void testWeightsAreMerged() throws Exception {
+    PCollection<Vector> vecs = MemPipeline.typedCollectionOf(MLAvros.vector(),
+        ImmutableList.of(
+            Vectors.of(0.0, 0.0, 3.0, 0.0),
+            sparse(4, 2, 3.0),
+            Vectors.of(-0.0, 0.0, 3.0, -0.0),
+            Vectors.named("foo", 1.0, 2.0, 3.0, 4.0),
+            Vectors.of(1.0, 2.0, 3.0, 4.0),
+            Vectors.of(0.0, 0.0, 0.0, 0.0)));
+    Map<Vector, Double> weights = Maps.newHashMap();
+    for (Weighted<Vector> wv : Dedupe.apply(vecs).materialize()) {
+      Vector key = Dedupe.canonical(wv.thing());
+      assertEquals(null, weights.put(key, wv.weight()));
+    }
+    assertEquals(3, weights.size());
+    assertEquals(3.0, weights.get(Dedupe.canonical(sparse(4, 2, 3.0))), 0.0);
+    assertEquals(2.0, weights.get(Dedupe.canonical(Vectors.of(1.0, 2.0, 3.0, 4.0))), 0.0);
+    assertEquals(1.0, weights.get(Dedupe.canonical(Vectors.of(0.0, 0.0, 0.0, 0.0))), 0.0);
+  }
+}